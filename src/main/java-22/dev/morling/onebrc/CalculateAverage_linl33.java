@@ -17,25 +17,53 @@ package dev.morling.onebrc;
 
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.VectorSpecies;
-import sun.misc.Unsafe;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.lang.foreign.*;
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.SplittableRandom;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class CalculateAverage_linl33 {
     private static final String FILE_PATH_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.measurementsPath";
-    private static final int WEATHER_STATION_LENGTH_MAX = 100;
-    private static final long WEATHER_STATION_DISTINCT_MAX = 10_000L;
+    private static final String HASH_MODE_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.hashMode";
+    private static final String HASH_SEED_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.hashSeed";
+    private static final String HASH_STATS_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.hashStats";
+    private static final String SNAPSHOT_PATH_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.snapshotPath";
+    private static final String MADVISE_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.madvise";
+    private static final String IO_MODE_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.ioMode";
+    private static final String READ_BLOCK_SIZE_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.readBlockSize";
+    private static final String DIRECT_IO_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.directIo";
+    private static final String PIN_THREADS_PROPERTY = "dev.morling.onebrc.CalculateAverage_linl33.pinThreads";
     private static final int N_THREADS = Runtime.getRuntime().availableProcessors();
+    // files are split into chunks of about this size in batch mode, smaller files are not split
+    private static final long BATCH_CHUNK_SIZE = 16L << 20;
 
     private static final MemorySegment ALL = MemorySegment.NULL.reinterpret(Long.MAX_VALUE);
     private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
@@ -45,7 +73,29 @@ public class CalculateAverage_linl33 {
             .name("1brc-CalculateAverage-", 0)
             .inheritInheritableThreadLocals(false);
 
-    private static final Unsafe UNSAFE;
+    // "fast" hashes the leading and trailing 4 bytes of a key, "full" hashes all bytes mixed with a random seed
+    private static final boolean FULL_KEY_HASH = "full".equals(System.getProperty(HASH_MODE_PROPERTY, "fast"));
+    private static final long HASH_SEED = Long.getLong(HASH_SEED_PROPERTY, new SplittableRandom().nextLong());
+    private static final boolean HASH_STATS = Boolean.getBoolean(HASH_STATS_PROPERTY);
+
+    // comma separated madvise hints for the input mapping, e.g. "sequential,dontneed", see MemoryAdvice
+    private static final MemoryAdvice MEMORY_ADVICE = MemoryAdvice.parse(System.getProperty(MADVISE_PROPERTY));
+
+    // "mmap" maps the input, "read" reads it with positional reads into pooled buffers, optionally with O_DIRECT
+    private static final boolean READ_INPUT = "read".equals(System.getProperty(IO_MODE_PROPERTY, "mmap"));
+
+    // pins the i-th thread of an engine's pool to the same CPU for its whole life, see Engine
+    private static final CpuAffinity AFFINITY = CpuAffinity.create(Boolean.getBoolean(PIN_THREADS_PROPERTY));
+    // the NUMA node of the current pool thread, tables are taken from and first touched on it; 0 on other threads
+    private static final ThreadLocal<Integer> WORKER_NODE = ThreadLocal.withInitial(() -> 0);
+
+    // coordinates are (segment, offset); the input is read with its mapping or read buffer as segment, so those reads
+    // are bounds checked; the tables use (ALL, address), as their entries hold addresses into their own off-heap
+    // memory, the input mappings and copied keys; ALL spans the whole address space and has the global scope, so
+    // its checks never fail
+    private static final VarHandle BYTE_HANDLE = ValueLayout.JAVA_BYTE.varHandle().withInvokeExactBehavior();
+    private static final VarHandle INT_HANDLE = ValueLayout.JAVA_INT_UNALIGNED.varHandle().withInvokeExactBehavior();
+    private static final VarHandle LONG_HANDLE = ValueLayout.JAVA_LONG_UNALIGNED.varHandle().withInvokeExactBehavior();
 
     static {
         if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
@@ -54,49 +104,414 @@ public class CalculateAverage_linl33 {
         if ((BYTE_SPECIES.vectorByteSize() & (BYTE_SPECIES.vectorByteSize() - 1)) != 0) {
             throw new UnsupportedOperationException(STR."Unsupported vectorByteSize \{BYTE_SPECIES.vectorByteSize()}");
         }
+    }
+
+    public static void main() throws InterruptedException, IOException {
+        final var filePath = Paths.get(System.getProperty(FILE_PATH_PROPERTY, "./measurements.txt"));
+
+        final var snapshotPath = System.getProperty(SNAPSHOT_PATH_PROPERTY);
+
+        try (final var engine = new Engine(N_THREADS)) {
+            engine.aggregate(filePath, snapshotPath != null ? Paths.get(snapshotPath) : null).writeToStdout();
+        }
+    }
+
+    /**
+     * Keeps the worker threads and the pooled hash tables between calls, so later files skip thread start-up and
+     * table allocation.
+     */
+    public static final class Engine implements Aggregator {
+        private final int nThreads;
+        private final ExecutorService threadPool;
+        private final ExecutorService smallFilePool = Executors.newVirtualThreadPerTaskExecutor();
+        private final HashTablePool tablePool = new HashTablePool();
+        // null when the input is mapped
+        private final PositionalReader reader = READ_INPUT
+                ? new PositionalReader(Integer.getInteger(READ_BLOCK_SIZE_PROPERTY, PositionalReader.DEFAULT_BLOCK_SIZE), Boolean.getBoolean(DIRECT_IO_PROPERTY))
+                : null;
+
+        public Engine(final int nThreads) {
+            this.nThreads = nThreads;
+            // every pool thread gets a worker index when it is created and is pinned by it once, before its first task
+            final var nextWorker = new AtomicInteger();
+            this.threadPool = Executors.newFixedThreadPool(nThreads, task -> {
+                final var worker = nextWorker.getAndIncrement();
+                return THREAD_BUILDER.unstarted(() -> {
+                    WORKER_NODE.set(AFFINITY.pin(worker));
+                    task.run();
+                });
+            });
+        }
+
+        @Override
+        public ResultFormatter aggregate(final Path filePath) throws IOException {
+            return aggregate(filePath, null);
+        }
+
+        /**
+         * @param snapshotPath if not {@code null}, the aggregated state is also written there, see {@link Snapshot}
+         */
+        public ResultFormatter aggregate(final Path filePath, final Path snapshotPath) throws IOException {
+            return calculateAverage(filePath, snapshotPath, this.nThreads, this.threadPool, this.tablePool, this.reader);
+        }
+
+        /**
+         * Merges snapshots written by {@link #aggregate(Path, Path)} or by this method without reading any text.
+         *
+         * @param mergedSnapshotPath if not {@code null}, the merged state is written there as a new snapshot, it may
+         *                           be one of {@code snapshotPaths}
+         */
+        public ResultFormatter mergeSnapshots(final List<Path> snapshotPaths, final Path mergedSnapshotPath) throws IOException {
+            return CalculateAverage_linl33.mergeSnapshots(snapshotPaths, mergedSnapshotPath, this.tablePool);
+        }
+
+        @Override
+        public BatchResult aggregateAll(final List<Path> filePaths, final boolean combined) throws IOException {
+            return calculateAverages(filePaths, combined, this.nThreads, this.threadPool, this.smallFilePool, this.tablePool, this.reader);
+        }
+
+        @Override
+        public void close() {
+            this.threadPool.close();
+            this.smallFilePool.close();
+            this.tablePool.close();
+        }
+    }
+
+    /**
+     * Aggregates one file. The input mapping is released on return and the hash tables go back to the pool, so this
+     * can be called any number of times in the same JVM.
+     *
+     * @param reader reads the input instead of mapping it if not {@code null}
+     */
+    private static ResultFormatter calculateAverage(final Path filePath,
+                                                    final Path snapshotPath,
+                                                    final int nThreads,
+                                                    final ExecutorService threadPool,
+                                                    final HashTablePool tablePool,
+                                                    final PositionalReader reader)
+            throws IOException {
+        try (final var inputArena = Arena.ofShared()) {
+            final var maps = new HashTable[nThreads];
+
+            try {
+                final HashTable map;
+                if (reader != null) {
+                    try (final var source = reader.open(filePath)) {
+                        map = await(calculateAverageAsync(source, maps, threadPool, tablePool));
+                    }
+                }
+                else {
+                    final MemorySegment inputMapped;
+                    try (final var channel = FileChannel.open(filePath)) {
+                        inputMapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), inputArena);
+                    }
+                    map = await(calculateAverageAsync(inputMapped, maps, threadPool, tablePool));
+                }
+                if (HASH_STATS) {
+                    map.printHashStats();
+                }
+                if (snapshotPath != null) {
+                    Snapshot.write(map, snapshotPath);
+                }
+                return toResult(map);
+            }
+            finally {
+                // the keys point into the input mapping, the tables are reset before it goes away
+                releaseAll(maps, tablePool);
+            }
+        }
+    }
+
+    private static ResultFormatter mergeSnapshots(final List<Path> snapshotPaths,
+                                                  final Path mergedSnapshotPath,
+                                                  final HashTablePool tablePool)
+            throws IOException {
+        try (final var snapshotArena = Arena.ofShared()) {
+            final var map = tablePool.acquire();
+            try {
+                for (final var snapshotPath : snapshotPaths) {
+                    try (final var channel = FileChannel.open(snapshotPath)) {
+                        final var snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), snapshotArena);
+                        Snapshot.load(snapshot, snapshotPath, map);
+                    }
+                }
+                if (mergedSnapshotPath != null) {
+                    Snapshot.write(map, mergedSnapshotPath);
+                }
+                return toResult(map);
+            }
+            finally {
+                // the keys point into the snapshot mappings, the table is reset before they go away
+                tablePool.release(map);
+            }
+        }
+    }
 
+    /**
+     * Aggregates many files with the same pools. Files larger than {@link #BATCH_CHUNK_SIZE} are split into chunks of
+     * about that size, which are queued on {@code threadPool} largest file first, so the chunks of the last files fill
+     * in for threads that would otherwise wait. Smaller files are aggregated whole, each on its own virtual thread.
+     * <p>
+     * A file is only opened or mapped once fewer than {@code 2 * nThreads} files are in flight. As soon as its last
+     * chunk is merged, its result is formatted and its table folded into the combined one, then its tables, mapping
+     * and source are released, so memory grows with the window rather than with the number of files.
+     */
+    private static BatchResult calculateAverages(final List<Path> filePaths,
+                                                 final boolean combined,
+                                                 final int nThreads,
+                                                 final ExecutorService threadPool,
+                                                 final ExecutorService smallFilePool,
+                                                 final HashTablePool tablePool,
+                                                 final PositionalReader reader)
+            throws IOException {
+        final var nFiles = filePaths.size();
+        final var sizes = new long[nFiles];
+        for (int i = 0; i < nFiles; i++) {
+            sizes[i] = Files.size(filePaths.get(i));
+        }
+        final var order = IntStream.range(0, nFiles)
+                .boxed()
+                .sorted(Comparator.comparingLong((Integer i) -> sizes[i]).reversed())
+                .toList();
+
+        final var results = new ResultFormatter[nFiles];
+        final var combinedMap = new HashTable[1];
+        final var openFiles = new Semaphore(2 * nThreads);
+        final var tasks = new CompletableFuture<?>[nFiles];
         try {
-            var f = Unsafe.class.getDeclaredField("theUnsafe");
-            f.setAccessible(true);
-            UNSAFE = (Unsafe) f.get(null);
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new RuntimeException(e);
+            if (combined) {
+                // the inputs are released while the batch runs, the combined table keeps its own copy of the keys
+                combinedMap[0] = tablePool.acquire();
+                combinedMap[0].copyKeys();
+            }
+
+            for (final int i : order) {
+                try {
+                    openFiles.acquire();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted before opening " + filePaths.get(i));
+                }
+
+                final CompletableFuture<Void> task;
+                try {
+                    task = calculateAverageAsync(filePaths.get(i), sizes[i] <= BATCH_CHUNK_SIZE ? smallFilePool : threadPool, tablePool, reader,
+                            map -> {
+                                results[i] = toResult(map);
+                                if (combinedMap[0] != null) {
+                                    synchronized (combinedMap) {
+                                        combinedMap[0].merge(map);
+                                    }
+                                }
+                            });
+                }
+                catch (IOException | RuntimeException e) {
+                    openFiles.release();
+                    throw e;
+                }
+                tasks[i] = task.whenComplete((ignored, failure) -> openFiles.release());
+            }
+            await(CompletableFuture.allOf(tasks));
+
+            final var resultMap = new LinkedHashMap<Path, ResultFormatter>();
+            for (int i = 0; i < nFiles; i++) {
+                resultMap.put(filePaths.get(i), results[i]);
+            }
+            return new BatchResult(resultMap, combinedMap[0] != null ? toResult(combinedMap[0]) : null);
+        }
+        finally {
+            // nothing may still be merging into the combined table when it is released
+            awaitQuietly(tasks);
+            releaseAll(combinedMap, tablePool);
         }
     }
 
-    public static void main() throws InterruptedException, IOException {
-        final var filePath = Paths.get(System.getProperty(FILE_PATH_PROPERTY, "./measurements.txt"));
+    /**
+     * Opens or maps one file of a batch and aggregates it, {@code onResult} gets the table holding the whole file.
+     * Its tables, mapping and source are released once every chunk and {@code onResult} are done, also on failure.
+     */
+    private static CompletableFuture<Void> calculateAverageAsync(final Path filePath,
+                                                                 final ExecutorService executor,
+                                                                 final HashTablePool tablePool,
+                                                                 final PositionalReader reader,
+                                                                 final Consumer<HashTable> onResult)
+            throws IOException {
+        final var inputArena = Arena.ofShared();
+        PositionalReader.Source source = null;
+        final HashTable[] maps;
+        final CompletableFuture<HashTable> task;
+        try {
+            if (reader != null) {
+                source = reader.open(filePath);
+                maps = new HashTable[nChunks(source.size())];
+                task = calculateAverageAsync(source, maps, executor, tablePool);
+            }
+            else {
+                final MemorySegment inputMapped;
+                try (final var channel = FileChannel.open(filePath)) {
+                    inputMapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), inputArena);
+                }
+                maps = new HashTable[nChunks(inputMapped.byteSize())];
+                task = calculateAverageAsync(inputMapped, maps, executor, tablePool);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            inputArena.close();
+            if (source != null) {
+                try {
+                    source.close();
+                }
+                catch (IOException closeFailure) {
+                    e.addSuppressed(closeFailure);
+                }
+            }
+            throw e;
+        }
 
-        try (final var channel = FileChannel.open(filePath)) {
-            final var inputMapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.global());
+        final var openSource = source;
+        return task.thenAccept(onResult).whenComplete((ignored, failure) -> {
+            // the keys point into the input mapping, the tables are reset before it goes away
+            releaseAll(maps, tablePool);
+            inputArena.close();
+            if (openSource != null) {
+                try {
+                    openSource.close();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
 
-            final var chunkBounds = calcChunkBounds(inputMapped.address(), inputMapped.byteSize());
-            final var maps = new HashTable[N_THREADS];
+    private static int nChunks(final long size) {
+        return size <= BATCH_CHUNK_SIZE ? 1 : (int) ((size + BATCH_CHUNK_SIZE - 1) / BATCH_CHUNK_SIZE);
+    }
 
-            try (final var threadPool = Executors.newFixedThreadPool(N_THREADS, THREAD_BUILDER.factory());
-                    final var singleThreadExecutor = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory())) {
-                final var rootTask = CompletableFuture.runAsync(new CalculateAverageTask(maps, chunkBounds, 0), threadPool);
+    /**
+     * Splits {@code input} into one chunk per element of {@code maps}, aggregates every chunk into its own table and
+     * merges the tables as they finish. Merged tables go back to the pool and are cleared from {@code maps}.
+     *
+     * @return completes with {@code maps[0]} holding the whole input
+     */
+    private static CompletableFuture<HashTable> calculateAverageAsync(final MemorySegment input,
+                                                                      final HashTable[] maps,
+                                                                      final ExecutorService executor,
+                                                                      final HashTablePool tablePool) {
+        final var nChunks = maps.length;
+        final var chunkBounds = calcChunkBounds(input.byteSize(), nChunks);
+        MEMORY_ADVICE.onMapping(input.address(), input.byteSize());
+
+        final var tasks = new CompletableFuture<?>[nChunks];
+        for (int t = 0; t < nChunks; t++) {
+            tasks[t] = submit(new CalculateAverageTask(maps, chunkBounds, t, tablePool, input, null), executor);
+        }
+        return mergeAsync(tasks, maps, executor, tablePool);
+    }
 
-                final var futures = IntStream
-                        .range(1, N_THREADS)
-                        .mapToObj(t -> CompletableFuture
-                                .runAsync(new CalculateAverageTask(maps, chunkBounds, t), threadPool)
-                                .runAfterBothAsync(rootTask, () -> maps[0].merge(maps[t]), singleThreadExecutor))
-                        .toArray(CompletableFuture[]::new);
+    /**
+     * Like {@link #calculateAverageAsync(MemorySegment, HashTable[], ExecutorService, HashTablePool)}, but reads the
+     * chunks from {@code source}. The tables copy their keys, the read buffers are reused.
+     */
+    private static CompletableFuture<HashTable> calculateAverageAsync(final PositionalReader.Source source,
+                                                                      final HashTable[] maps,
+                                                                      final ExecutorService executor,
+                                                                      final HashTablePool tablePool) {
+        final var nChunks = maps.length;
+        final var chunkBounds = calcChunkBounds(source.size(), nChunks);
+
+        final var tasks = new CompletableFuture<?>[nChunks];
+        for (int t = 0; t < nChunks; t++) {
+            tasks[t] = submit(new CalculateAverageTask(maps, chunkBounds, t, tablePool, null, source), executor);
+        }
+        return mergeAsync(tasks, maps, executor, tablePool);
+    }
 
-                CompletableFuture.allOf(futures).join();
+    /**
+     * A task that could not be submitted fails like one that threw, the tasks already submitted are still awaited.
+     */
+    private static CompletableFuture<Void> submit(final CalculateAverageTask task, final ExecutorService executor) {
+        try {
+            return CompletableFuture.runAsync(task, executor);
+        }
+        catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return completes once every chunk task and every merge has finished, also if one of them failed early, so the
+     *         caller may release the tables and the input as soon as it is done; completes exceptionally if any of
+     *         them failed
+     */
+    private static CompletableFuture<HashTable> mergeAsync(final CompletableFuture<?>[] tasks,
+                                                           final HashTable[] maps,
+                                                           final ExecutorService executor,
+                                                           final HashTablePool tablePool) {
+        final var nChunks = maps.length;
+        // a failed chunk fails the merges above it right away, while the other chunks may still be running
+        final var all = new ArrayList<CompletableFuture<?>>(Arrays.asList(tasks));
+        // pairwise merge tree, log2(nChunks) levels deep
+        // after the level with stride s, maps[i] holds maps[i, i + 2s) for every i that is a multiple of 2s
+        // each merge starts as soon as its two inputs are done, without waiting for the rest of the level
+        for (int stride = 1; stride < nChunks; stride <<= 1) {
+            for (int left = 0; left + stride < nChunks; left += stride << 1) {
+                final var l = left;
+                final var r = left + stride;
+                tasks[l] = tasks[l].runAfterBothAsync(tasks[r], () -> {
+                    maps[l].merge(maps[r]);
+                    tablePool.release(maps[r]);
+                    maps[r] = null;
+                }, executor);
+                all.add(tasks[l]);
             }
+        }
+
+        return CompletableFuture.allOf(all.toArray(CompletableFuture<?>[]::new)).thenApply(ignored -> maps[0]);
+    }
 
-            printSorted(maps[0]);
+    /**
+     * Like {@link CompletableFuture#join()}, but rethrows what a task threw, unwrapping {@link UncheckedIOException}.
+     */
+    private static <T> T await(final CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            switch (e.getCause()) {
+                case UncheckedIOException io -> throw io.getCause();
+                case RuntimeException runtime -> throw runtime;
+                case Error error -> throw error;
+                case null, default -> throw e;
+            }
         }
     }
 
-    private static long[] calcChunkBounds(final long mappedAddr, final long fileSizeBytes) {
-        final var chunkBounds = new long[N_THREADS + 1];
-        chunkBounds[0] = mappedAddr;
-        chunkBounds[chunkBounds.length - 1] = mappedAddr + fileSizeBytes;
+    /**
+     * Waits for all non-{@code null} {@code tasks}, ignoring their failures, which the caller already reports.
+     */
+    private static void awaitQuietly(final CompletableFuture<?>[] tasks) {
+        final var started = Arrays.stream(tasks).filter(Objects::nonNull).toArray(CompletableFuture<?>[]::new);
+        CompletableFuture.allOf(started).exceptionally(ignored -> null).join();
+    }
+
+    private static void releaseAll(final HashTable[] maps, final HashTablePool tablePool) {
+        for (int i = 0; i < maps.length; i++) {
+            if (maps[i] != null) {
+                tablePool.release(maps[i]);
+                maps[i] = null;
+            }
+        }
+    }
+
+    private static long[] calcChunkBounds(final long fileSizeBytes, final int nThreads) {
+        final var chunkBounds = new long[nThreads + 1];
+        chunkBounds[0] = 0L;
+        chunkBounds[chunkBounds.length - 1] = fileSizeBytes;
 
-        final var chunkSize = (fileSizeBytes / N_THREADS) & -CalculateAverageTask.BATCH_SIZE_BYTES;
+        final var chunkSize = (fileSizeBytes / nThreads) & -CalculateAverageTask.BATCH_SIZE_BYTES;
         for (int i = 1; i < chunkBounds.length - 1; i++) {
             chunkBounds[i] = chunkBounds[i - 1] + chunkSize;
         }
@@ -104,60 +519,50 @@ public class CalculateAverage_linl33 {
         return chunkBounds;
     }
 
-    private static void printSorted(final HashTable temperatureMeasurements) {
-        final var weatherStations = new AggregatedMeasurement[(int) temperatureMeasurements.size];
-        final var nameBuffer = new byte[WEATHER_STATION_LENGTH_MAX];
+    private static ResultFormatter toResult(final HashTable temperatureMeasurements) {
+        final var result = new ResultFormatter((int) temperatureMeasurements.size);
 
-        for (int i = 0; i < weatherStations.length; i++) {
+        for (long i = 0; i < temperatureMeasurements.size; i++) {
             final var offset = temperatureMeasurements.getOffset(i);
-            final var nameAddr = UNSAFE.getLong(offset);
-            final var nameLength = UNSAFE.getInt(offset + Integer.BYTES * 7);
-            MemorySegment.copy(ALL, ValueLayout.JAVA_BYTE, nameAddr, nameBuffer, 0, nameLength);
-            final var nameStr = new String(nameBuffer, 0, nameLength, StandardCharsets.UTF_8);
-            weatherStations[i] = new AggregatedMeasurement(nameStr, i);
+            result.add(
+                    ALL,
+                    getLong(offset),
+                    getInt(offset + Integer.BYTES * 7),
+                    getInt(offset + Integer.BYTES * 5),
+                    getInt(offset + Integer.BYTES * 6),
+                    getLong(offset + Integer.BYTES * 2),
+                    getInt(offset + Integer.BYTES * 4));
         }
 
-        Arrays.sort(weatherStations);
-
-        System.out.print('{');
-        for (int i = 0; i < weatherStations.length - 1; i++) {
-            printAggMeasurement(weatherStations[i], temperatureMeasurements);
-            System.out.print(',');
-            System.out.print(' ');
-        }
-        printAggMeasurement(weatherStations[weatherStations.length - 1], temperatureMeasurements);
-        System.out.println('}');
+        return result;
     }
 
-    private static void printAggMeasurement(final AggregatedMeasurement aggMeasurement,
-                                            final HashTable temperatureMeasurements) {
-        final var offset = temperatureMeasurements.getOffset(aggMeasurement.id());
+    private static byte getByte(final MemorySegment segment, final long offset) {
+        return (byte) BYTE_HANDLE.get(segment, offset);
+    }
 
-        // name
-        System.out.print(aggMeasurement.name());
-        System.out.print('=');
+    private static int getInt(final MemorySegment segment, final long offset) {
+        return (int) INT_HANDLE.get(segment, offset);
+    }
 
-        // min
-        printAsDouble(offset + Integer.BYTES * 5);
-        System.out.print('/');
+    private static long getLong(final MemorySegment segment, final long offset) {
+        return (long) LONG_HANDLE.get(segment, offset);
+    }
 
-        // mean
-        final double total = UNSAFE.getLong(offset + Integer.BYTES * 2);
-        final var count = UNSAFE.getInt(offset + Integer.BYTES * 4);
-        System.out.print(round(total / count / 10d));
-        System.out.print('/');
+    private static int getInt(final long address) {
+        return (int) INT_HANDLE.get(ALL, address);
+    }
 
-        // max
-        printAsDouble(offset + Integer.BYTES * 6);
+    private static long getLong(final long address) {
+        return (long) LONG_HANDLE.get(ALL, address);
     }
 
-    private static void printAsDouble(final long addr) {
-        final var val = (double) UNSAFE.getInt(addr);
-        System.out.print(val / 10d);
+    private static void putInt(final long address, final int value) {
+        INT_HANDLE.set(ALL, address, value);
     }
 
-    private static double round(final double d) {
-        return Math.round(d * 10d) / 10d;
+    private static void putLong(final long address, final long value) {
+        LONG_HANDLE.set(ALL, address, value);
     }
 
     private static class CalculateAverageTask implements Runnable {
@@ -168,74 +573,93 @@ public class CalculateAverage_linl33 {
         private final long chunkStart;
         private final long chunkEnd;
         private final int t;
+        private final HashTablePool tablePool;
+        // exactly one of them is set, chunkBounds are offsets into the mapping or into the file
+        private final MemorySegment input;
+        private final PositionalReader.Source source;
 
         private HashTable map;
 
-        public CalculateAverageTask(HashTable[] maps, long[] chunkBounds, int t) {
+        public CalculateAverageTask(HashTable[] maps, long[] chunkBounds, int t, HashTablePool tablePool, MemorySegment input,
+                                    PositionalReader.Source source) {
             this.maps = maps;
             this.chunkBounds = chunkBounds;
             this.chunkStart = chunkBounds[t];
             this.chunkEnd = chunkBounds[t + 1];
             this.t = t;
+            this.tablePool = tablePool;
+            this.input = input;
+            this.source = source;
         }
 
         @Override
         public void run() {
-            this.maps[this.t] = new HashTable();
+            // pool threads are pinned, so the table and the chunk are first touched on the local node
+            this.maps[this.t] = this.tablePool.acquire(WORKER_NODE.get());
             this.map = this.maps[this.t];
 
+            if (this.source != null) {
+                this.readChunk();
+                return;
+            }
+
+            final var input = this.input;
             var lineStart = this.chunkBounds[0];
             // walk back to find the previous '\n' and use it as lineStart
             for (long i = this.chunkStart - 1; i > this.chunkBounds[0]; i--) {
-                if (UNSAFE.getByte(i) == (byte) '\n') {
+                if (getByte(input, i) == (byte) '\n') {
                     lineStart = i + 1L;
                     break;
                 }
             }
 
-            final var vectorLimit = this.chunkStart + ((this.chunkEnd - this.chunkStart) & -BATCH_SIZE_BYTES);
-            for (long i = this.chunkStart; i < vectorLimit; i += BATCH_SIZE_BYTES) {
-                var lfMask = ByteVector.fromMemorySegment(BYTE_SPECIES, ALL, i, ByteOrder.nativeOrder())
-                        .eq((byte) '\n')
-                        .toLong();
-
-                final var lfCount = Long.bitCount(lfMask);
-                for (int j = 0; j < lfCount; j++) {
-                    final var lfPosRelative = Long.numberOfTrailingZeros(lfMask);
-                    final var lfAddress = i + lfPosRelative;
-                    processLine(lineStart, lfAddress);
-
-                    lineStart = lfAddress + 1L;
-                    // unset the lowest set bit, should compile to BLSR
-                    lfMask &= lfMask - 1L;
+            // lines ending in this chunk are processed here, including the one that started in the previous chunk
+            MEMORY_ADVICE.onRange(input.address() + lineStart, this.chunkEnd - lineStart);
+            final var scanner = new DelimiterScanner(input, lineStart, this.chunkEnd);
+            var released = input.address() + lineStart;
+            int lines;
+            while ((lines = scanner.next()) > 0) {
+                for (int j = 0; j < lines; j++) {
+                    processLine(input, scanner.lineStarts[j], scanner.lineEnds[j]);
                 }
+                released = MEMORY_ADVICE.releaseBehind(released, input.address() + scanner.remainder());
             }
-
-            if (vectorLimit != this.chunkEnd) {
-                processTrailingBytes(lineStart, vectorLimit, this.chunkEnd);
-            }
+            MEMORY_ADVICE.releaseChunk(released, input.address() + this.chunkEnd);
         }
 
-        private void processTrailingBytes(long lineStart,
-                                          final long start,
-                                          final long end) {
-            for (long i = start; i < end; i++) {
-                final var b = UNSAFE.getByte(i);
-                if (b != (byte) '\n') {
-                    continue;
-                }
-
-                processLine(lineStart, i);
-                lineStart = i + 1;
+        private void readChunk() {
+            this.map.copyKeys();
+            try {
+                // the source hands out the lines starting in this chunk, the partial line at its start is skipped
+                this.source.read(this.chunkStart, this.chunkEnd, lines -> {
+                    final var scanner = new DelimiterScanner(lines, 0L, lines.byteSize());
+                    int n;
+                    while ((n = scanner.next()) > 0) {
+                        for (int j = 0; j < n; j++) {
+                            processLine(lines, scanner.lineStarts[j], scanner.lineEnds[j]);
+                        }
+                    }
+                });
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
 
-        private void processLine(final long lineStart, final long lfAddress) {
+        /**
+         * @param lineStart offset of the line in {@code input}
+         * @param lfOffset  offset of the {@code '\n'} ending the line in {@code input}
+         */
+        private void processLine(final MemorySegment input, final long lineStart, final long lfOffset) {
             // read 5 bytes before '\n'
             // the temperature is formatted to 1 decimal place
             // therefore the shortest temperature value is 0.0
             // so there are always at least 5 bytes between the location name and '\n'
-            final var trailing5Bytes = UNSAFE.getLong(lfAddress - 5);
+            // nothing past the '\n' is read, it may be the last byte of the input; one 8 byte load ending at the '\n'
+            // unless the line is too close to the start of the input
+            final var trailing5Bytes = lfOffset >= Long.BYTES
+                    ? getLong(input, lfOffset - Long.BYTES) >>> 24
+                    : ((long) getInt(input, lfOffset - 4) << 8) | (getByte(input, lfOffset - 5) & 0xffL);
             final int trailingDWordRaw = (int) (trailing5Bytes >>> 8);
 
             // select the low nibble for each byte, '0'-'9' -> 0-9, ';' -> 11, '-' -> 13
@@ -247,7 +671,7 @@ public class CalculateAverage_linl33 {
             final var secondHighestByte = trailingDWordLowNibble & 0xf;
 
             var temperature = trailingDigitsParsed;
-            var lineLength = lfAddress - lineStart - 4;
+            var lineLength = lfOffset - lineStart - 4;
 
             if (secondHighestByte > 9) {
                 if (secondHighestByte == ('-' & 0xf)) {
@@ -266,105 +690,549 @@ public class CalculateAverage_linl33 {
                 }
             }
 
-            this.map.putEntry(lineStart, (int) lineLength, temperature);
+            this.map.putEntry(input.address() + lineStart, (int) lineLength, temperature);
+        }
+    }
+
+    /**
+     * Versioned binary image of a {@link HashTable}, written through a mapping and merged back without parsing.
+     * <p>
+     * All values are little endian. The file starts with a {@value #HEADER_SIZE} byte header: magic (long), version
+     * (int), reserved (int), # of entries (long) and size of the names section (long). It is followed by one
+     * {@value #ENTRY_SIZE} byte entry per station: offset of the name in the names section (int), name length (int),
+     * sum (long), count (long), min (int) and max (int), temperatures in tenths of a degree. The count is a long, but
+     * a {@link HashTable} only holds counts up to {@link Integer#MAX_VALUE}, larger ones are rejected on load. The
+     * names section holds
+     * every name followed by {@code ';'} like in the input and ends with {@value #NAMES_PADDING} zero bytes, so the
+     * names are hashed and compared straight from the mapping with the same over-reading loads as keys in the input.
+     */
+    private static final class Snapshot {
+        // "1BRCSNAP"
+        private static final long MAGIC = 0x50414e5343524231L;
+        private static final int VERSION = 1;
+        private static final long HEADER_SIZE = 32;
+        private static final long ENTRY_SIZE = 32;
+        // at least the widest vector read past the ';' by HashTable.mismatch
+        private static final long NAMES_PADDING = 64;
+
+        private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+        private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+        /**
+         * Writes to a temporary file next to {@code path} and moves it into place, so a crash never leaves a partial
+         * snapshot behind and {@code path} may still be mapped for reading.
+         */
+        static void write(final HashTable table, final Path path) throws IOException {
+            final var entries = table.size;
+            long namesSize = 0;
+            for (long i = 0; i < entries; i++) {
+                namesSize += getInt(table.getOffset(i) + Integer.BYTES * 7) + 1;
+            }
+            final var namesStart = HEADER_SIZE + entries * ENTRY_SIZE;
+            if (namesSize > Integer.MAX_VALUE) {
+                throw new IllegalStateException(STR."Names of \{entries} stations do not fit into a snapshot");
+            }
+
+            final var tmpPath = path.resolveSibling(STR."\{path.getFileName()}.tmp");
+            try (final var channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    final var arena = Arena.ofConfined()) {
+                final var out = channel.map(FileChannel.MapMode.READ_WRITE, 0, namesStart + namesSize + NAMES_PADDING, arena);
+
+                out.set(LONG, 0, MAGIC);
+                out.set(INT, 8, VERSION);
+                out.set(LONG, 16, entries);
+                out.set(LONG, 24, namesSize);
+
+                long nameOffset = 0;
+                for (long i = 0; i < entries; i++) {
+                    final var offset = table.getOffset(i);
+                    final var keyLength = getInt(offset + Integer.BYTES * 7);
+                    final var entry = HEADER_SIZE + i * ENTRY_SIZE;
+
+                    out.set(INT, entry, (int) nameOffset);
+                    out.set(INT, entry + 4, keyLength);
+                    out.set(LONG, entry + 8, getLong(offset + Integer.BYTES * 2));
+                    out.set(LONG, entry + 16, getInt(offset + Integer.BYTES * 4));
+                    out.set(INT, entry + 24, getInt(offset + Integer.BYTES * 5));
+                    out.set(INT, entry + 28, getInt(offset + Integer.BYTES * 6));
+
+                    MemorySegment.copy(ALL, getLong(offset), out, namesStart + nameOffset, keyLength);
+                    out.set(ValueLayout.JAVA_BYTE, namesStart + nameOffset + keyLength, (byte) ';');
+                    nameOffset += keyLength + 1;
+                }
+                out.force();
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Merges every entry of a mapped snapshot into {@code table}. The keys point into the mapping afterwards.
+         */
+        static void load(final MemorySegment snapshot, final Path path, final HashTable table) throws IOException {
+            if (snapshot.byteSize() < HEADER_SIZE || snapshot.get(LONG, 0) != MAGIC) {
+                throw new IOException(STR."\{path} is not a snapshot");
+            }
+            final var version = snapshot.get(INT, 8);
+            if (version != VERSION) {
+                throw new IOException(STR."\{path} has snapshot version \{version}, only \{VERSION} is supported");
+            }
+            final var entries = snapshot.get(LONG, 16);
+            final var namesSize = snapshot.get(LONG, 24);
+            final var namesStart = HEADER_SIZE + entries * ENTRY_SIZE;
+            if (entries < 0 || namesSize < 0 || snapshot.byteSize() != namesStart + namesSize + NAMES_PADDING) {
+                throw new IOException(STR."\{path} is truncated or corrupt");
+            }
+
+            final var namesAddress = snapshot.address() + namesStart;
+            for (long i = 0; i < entries; i++) {
+                final var entry = HEADER_SIZE + i * ENTRY_SIZE;
+                final var nameOffset = snapshot.get(INT, entry);
+                final var keyLength = snapshot.get(INT, entry + 4);
+                if (nameOffset < 0 || keyLength <= 0 || (long) nameOffset + keyLength >= namesSize) {
+                    throw new IOException(STR."\{path} is truncated or corrupt");
+                }
+
+                final var count = snapshot.get(LONG, entry + 16);
+                if (count <= 0) {
+                    throw new IOException(STR."\{path} is truncated or corrupt");
+                }
+                if (count > Integer.MAX_VALUE) {
+                    throw new IOException(STR."\{path} has \{count} rows for one station, at most \{Integer.MAX_VALUE} are supported");
+                }
+
+                final var keyAddress = namesAddress + nameOffset;
+                table.putEntryInternal(
+                        HashTable.hash(keyAddress, keyLength),
+                        keyAddress,
+                        keyLength,
+                        snapshot.get(LONG, entry + 8),
+                        (int) count,
+                        snapshot.get(INT, entry + 24),
+                        snapshot.get(INT, entry + 28));
+            }
+        }
+    }
+
+    /**
+     * Hands out reset {@link HashTable}s and takes them back after a run. The sparse array of new tables is sized from
+     * the largest key count seen so far, so they rarely have to grow.
+     */
+    private static class HashTablePool implements AutoCloseable {
+        private static final int MIN_HASH_BITS = 14;
+        // keep the sparse array at least 2^6 times larger than the # of keys
+        private static final int SPARSE_HEADROOM_BITS = 6;
+        // past DEFAULT_HASH_BITS, only keep the 2^2 times needed to stay below the load that makes a table grow,
+        // a sparse array per worker 2^6 times larger than 1M keys would not fit into memory
+        private static final int LARGE_SPARSE_HEADROOM_BITS = 2;
+
+        // idle tables by the NUMA node they were first touched on, only one without pinning
+        private final List<ConcurrentLinkedQueue<HashTable>> idle = Stream
+                .generate(ConcurrentLinkedQueue<HashTable>::new)
+                .limit(AFFINITY.nodeCount())
+                .toList();
+        private volatile long maxObservedSize;
+
+        public HashTable acquire() {
+            return acquire(0);
+        }
+
+        /**
+         * @param node the NUMA node of the calling thread, a new table is allocated rather than one from another node
+         */
+        public HashTable acquire(final int node) {
+            final var hashBits = hashBits();
+            final var idle = this.idle.get(node);
+            HashTable table;
+            while ((table = idle.poll()) != null) {
+                if (table.hashBits >= hashBits) {
+                    return table;
+                }
+                table.close();
+            }
+            return new HashTable(hashBits, node);
+        }
+
+        public void release(final HashTable table) {
+            if (table.size > this.maxObservedSize) {
+                this.maxObservedSize = table.size;
+            }
+            table.reset();
+            this.idle.get(table.node).add(table);
+        }
+
+        private int hashBits() {
+            final var observed = this.maxObservedSize;
+            if (observed == 0L) {
+                return HashTable.DEFAULT_HASH_BITS;
+            }
+            final var keyBits = Long.SIZE - Long.numberOfLeadingZeros(observed - 1L);
+            final var bits = Math.min(keyBits + SPARSE_HEADROOM_BITS, Math.max(keyBits + LARGE_SPARSE_HEADROOM_BITS, HashTable.DEFAULT_HASH_BITS));
+            return Math.max(bits, MIN_HASH_BITS);
+        }
+
+        @Override
+        public void close() {
+            for (final var idle : this.idle) {
+                HashTable table;
+                while ((table = idle.poll()) != null) {
+                    table.close();
+                }
+            }
         }
     }
 
     /**
      * Open addressing, linear probing hash map backed by off-heap memory
+     * <p>
+     * Every entry takes {@value #SPARSE_SCALE} bytes: key address (long), sum (long), count (int), min (int), max (int)
+     * and key length (int). The count is kept as an int to stay within that size, a put or merge that would take it
+     * past {@link Integer#MAX_VALUE} throws instead of wrapping around.
+     * <p>
+     * Entries live in the sparse array, the dense array lists their addresses in insertion order. Once a quarter of
+     * the sparse slots are taken, a sparse array twice the size is allocated and the entries are moved over
+     * incrementally, a few on every put, so the cost of growing is spread over the following rows. Until the move is
+     * done, keys not found in the new array are looked up in the old one.
      */
-    private static class HashTable {
-        private static final int TRUNCATED_HASH_BITS = 26;
-        // max # of unique keys
-        private static final long DENSE_SIZE = WEATHER_STATION_DISTINCT_MAX;
-        // max hash code (exclusive)
-        private static final long SPARSE_SIZE = 1L << (TRUNCATED_HASH_BITS + 1);
+    private static class HashTable implements AutoCloseable {
+        public static final int DEFAULT_HASH_BITS = 20;
         public static final long SPARSE_SCALE = 32;
         public static final long DENSE_SCALE = 8;
-
-        public final long sparseAddress;
-        public final long denseAddress;
+        // # of entries moved to the new sparse array per put while growing
+        private static final long MIGRATION_STEP = 2;
+        private static final long KEY_BLOCK_SIZE = 1L << 20;
+        // hash and mismatch read up to a vector past the ';' that ends a key
+        private static final long KEY_PADDING = Math.max(BYTE_SPECIES.vectorByteSize(), Long.BYTES);
+
+        // the NUMA node the table is used on, see HashTablePool
+        public final int node;
+        public int hashBits;
+        public long sparseAddress;
+        public long sparseEnd;
+        public long denseAddress;
+        // max # of unique keys before the table grows
+        public long denseCapacity;
         public long size;
 
-        public HashTable() {
-            var arena = new MallocArena(Arena.global());
-            var callocArena = new CallocArena(Arena.global());
+        // only maintained with HASH_STATS, counts lookups of putEntry but not of merge
+        public long lookups;
+        public long collisions;
+        public long maxProbeLength;
+
+        private Arena sparseArena;
+        private Arena denseArena;
+
+        // the sparse array being migrated, oldSparseAddress is 0 when the table is not growing
+        private int oldHashBits;
+        private long oldSparseAddress;
+        private long oldSparseEnd;
+        private Arena oldSparseArena;
+        // dense indices [migrated, migrationEnd) still point into the old sparse array
+        private long migrated;
+        private long migrationEnd;
+
+        // with copyKeys, new keys are copied into blocks of keyArena instead of pointing into the input
+        private boolean copyKeys;
+        private Arena keyArena;
+        private long keyCursor;
+        private long keyBlockEnd;
+
+        /**
+         * @param hashBits # of bits the hash is truncated to initially, the sparse array has room for twice as many
+         *                 slots
+         * @param node     the NUMA node of the thread that touches the table first
+         */
+        public HashTable(final int hashBits, final int node) {
+            this.node = node;
+            this.allocateSparse(hashBits);
+            this.denseCapacity = capacity(hashBits);
+            this.denseArena = Arena.ofShared();
+            this.denseAddress = alignedAddress(new MallocArena(this.denseArena).allocate(ValueLayout.JAVA_BYTE, this.denseCapacity * DENSE_SCALE));
+        }
+
+        private static long capacity(final int hashBits) {
+            // a quarter of the 2^(hashBits + 1) sparse slots
+            return 1L << (hashBits - 1);
+        }
+
+        private static long alignedAddress(final MemorySegment segment) {
+            return (segment.address() + MallocArena.MAX_ALIGN) & -MallocArena.MAX_ALIGN;
+        }
+
+        private void allocateSparse(final int hashBits) {
+            final var sparseSize = 1L << (hashBits + 1);
+            this.hashBits = hashBits;
+            this.sparseArena = Arena.ofShared();
+            this.sparseAddress = alignedAddress(new CallocArena(this.sparseArena).allocate(ValueLayout.JAVA_BYTE, sparseSize * SPARSE_SCALE));
+            this.sparseEnd = this.sparseAddress + sparseSize * SPARSE_SCALE;
+        }
 
-            final var sparse = callocArena.allocate(ValueLayout.JAVA_BYTE, SPARSE_SIZE * SPARSE_SCALE);
-            this.sparseAddress = (sparse.address() + MallocArena.MAX_ALIGN) & -MallocArena.MAX_ALIGN;
+        private void grow() {
+            if (this.oldSparseAddress != 0L) {
+                this.migrate(Long.MAX_VALUE);
+            }
 
-            final var dense = arena.allocate(ValueLayout.JAVA_BYTE, DENSE_SIZE * DENSE_SCALE);
-            this.denseAddress = (dense.address() + MallocArena.MAX_ALIGN) & -MallocArena.MAX_ALIGN;
+            this.oldHashBits = this.hashBits;
+            this.oldSparseAddress = this.sparseAddress;
+            this.oldSparseEnd = this.sparseEnd;
+            this.oldSparseArena = this.sparseArena;
+            this.migrated = 0;
+            this.migrationEnd = this.size;
+            this.allocateSparse(this.hashBits + 1);
+
+            final var denseArena = Arena.ofShared();
+            final var denseCapacity = capacity(this.hashBits);
+            final var denseAddress = alignedAddress(new MallocArena(denseArena).allocate(ValueLayout.JAVA_BYTE, denseCapacity * DENSE_SCALE));
+            MemorySegment.copy(ALL, this.denseAddress, ALL, denseAddress, this.size * DENSE_SCALE);
+            this.denseArena.close();
+            this.denseArena = denseArena;
+            this.denseAddress = denseAddress;
+            this.denseCapacity = denseCapacity;
+        }
+
+        /**
+         * Moves up to {@code steps} entries from the old to the new sparse array and releases the old array when it
+         * is empty.
+         */
+        private void migrate(final long steps) {
+            final var end = Math.min(this.migrationEnd, this.migrated + Math.min(steps, this.migrationEnd));
+            for (long i = this.migrated; i < end; i++) {
+                final var oldOffset = this.getOffset(i);
+                final var keyAddress = getLong(oldOffset);
+                final var keyLength = getInt(oldOffset + Integer.BYTES * 7);
+
+                // keys are never in both arrays, so the first free slot is the right one
+                var sparseLinearOffset = this.sparseAddress + truncateHash(hash(keyAddress, keyLength), this.hashBits) * SPARSE_SCALE;
+                while (getLong(sparseLinearOffset) != 0L) {
+                    sparseLinearOffset += SPARSE_SCALE;
+                    if (sparseLinearOffset == this.sparseEnd) {
+                        sparseLinearOffset = this.sparseAddress;
+                    }
+                }
+
+                MemorySegment.copy(ALL, oldOffset, ALL, sparseLinearOffset, SPARSE_SCALE);
+                putLong(this.denseAddress + i * DENSE_SCALE, sparseLinearOffset);
+            }
+            this.migrated = end;
+
+            if (end == this.migrationEnd) {
+                this.oldSparseArena.close();
+                this.oldSparseArena = null;
+                this.oldSparseAddress = 0L;
+            }
+        }
+
+        /**
+         * Empties the table by clearing only the sparse slots listed in the dense index.
+         */
+        public void reset() {
+            for (long i = 0; i < this.size; i++) {
+                final var offset = this.getOffset(i);
+                // entries not migrated yet go away with the old sparse array
+                if (offset >= this.sparseAddress && offset < this.sparseEnd) {
+                    putLong(offset, 0L);
+                }
+            }
+            if (this.oldSparseAddress != 0L) {
+                this.oldSparseArena.close();
+                this.oldSparseArena = null;
+                this.oldSparseAddress = 0L;
+            }
+            this.releaseKeys();
+            this.size = 0;
+            this.lookups = 0;
+            this.collisions = 0;
+            this.maxProbeLength = 0;
+        }
+
+        @Override
+        public void close() {
+            if (this.oldSparseArena != null) {
+                this.oldSparseArena.close();
+            }
+            this.sparseArena.close();
+            this.denseArena.close();
+            this.releaseKeys();
+        }
+
+        /**
+         * Keeps copies of the keys added from now on until the table is reset, for input that does not outlive the
+         * put, like a reused read buffer.
+         */
+        public void copyKeys() {
+            this.copyKeys = true;
+        }
+
+        private long copyKey(final long keyAddress, final int keyLength) {
+            final var size = (keyLength + 1L + KEY_PADDING + Long.BYTES - 1) & -Long.BYTES;
+            if (this.keyCursor + size > this.keyBlockEnd) {
+                if (this.keyArena == null) {
+                    this.keyArena = Arena.ofShared();
+                }
+                final var blockSize = Math.max(KEY_BLOCK_SIZE, size);
+                this.keyCursor = this.keyArena.allocate(blockSize, Long.BYTES).address();
+                this.keyBlockEnd = this.keyCursor + blockSize;
+            }
+            final var copy = this.keyCursor;
+            // including the ';', mismatch compares it as well
+            MemorySegment.copy(ALL, keyAddress, ALL, copy, keyLength + 1L);
+            this.keyCursor += size;
+            return copy;
+        }
+
+        private void releaseKeys() {
+            if (this.keyArena != null) {
+                this.keyArena.close();
+                this.keyArena = null;
+            }
+            this.keyCursor = 0L;
+            this.keyBlockEnd = 0L;
+            this.copyKeys = false;
         }
 
         public long getOffset(final long index) {
-            return UNSAFE.getLong(this.denseAddress + index * DENSE_SCALE);
+            return getLong(this.denseAddress + index * DENSE_SCALE);
         }
 
         public void putEntry(final long keyAddress, final int keyLength, final int value) {
             final var hash = hash(keyAddress, keyLength);
-            this.putEntryInternal(hash, keyAddress, keyLength, value, 1, value, value);
+            final var probes = this.putEntryInternal(hash, keyAddress, keyLength, value, 1, value, value);
+            if (HASH_STATS) {
+                this.lookups++;
+                this.collisions += probes;
+                this.maxProbeLength = Math.max(this.maxProbeLength, probes);
+            }
+        }
+
+        public void printHashStats() {
+            System.err.println(STR."hash mode: \{FULL_KEY_HASH ? STR."full, seed \{HASH_SEED}" : "fast"}, keys: \{this.size}, lookups: \{this.lookups}, "
+                    + STR."collisions: \{this.collisions}, mean probe length: \{(double) this.collisions / Math.max(1L, this.lookups)}, "
+                    + STR."max probe length: \{this.maxProbeLength}");
         }
 
-        private void putEntryInternal(final long hash,
+        /**
+         * @return the # of occupied slots with a different key that were probed before the key's slot
+         */
+        private long putEntryInternal(final long hash,
                                       final long keyAddress,
                                       final int keyLength,
                                       final long temperature,
                                       final int count,
                                       final int temperatureMin,
                                       final int temperatureMax) {
-            final var sparseOffset = this.sparseAddress + truncateHash(hash) * SPARSE_SCALE;
+            if (this.size == this.denseCapacity) {
+                this.grow();
+            }
+            if (this.oldSparseAddress != 0L) {
+                this.migrate(MIGRATION_STEP);
+            }
+
+            var sparseLinearOffset = this.sparseAddress + truncateHash(hash, this.hashBits) * SPARSE_SCALE;
+            long n = 0;
 
-            for (long n = 0, sparseLinearOffset = sparseOffset; n < WEATHER_STATION_DISTINCT_MAX; n++, sparseLinearOffset += SPARSE_SCALE) {
-                final var entryKeyAddress = UNSAFE.getLong(sparseLinearOffset);
+            // at most a quarter of the slots are taken, there always is a free one
+            for (;; n++) {
+                final var entryKeyAddress = getLong(sparseLinearOffset);
 
                 if (entryKeyAddress == 0L) {
-                    this.add(sparseLinearOffset, keyAddress, keyLength, temperature, count, temperatureMin, temperatureMax);
-                    this.size++;
-                    return;
+                    break;
                 }
 
-                if (mismatch(keyAddress, entryKeyAddress, keyLength)) {
-                    continue;
+                if (!mismatch(keyAddress, entryKeyAddress, keyLength)) {
+                    update(sparseLinearOffset, temperature, count, temperatureMin, temperatureMax);
+                    return n;
                 }
 
-                final var currMin = UNSAFE.getInt(sparseLinearOffset + Integer.BYTES * 5);
-                final var currMax = UNSAFE.getInt(sparseLinearOffset + Integer.BYTES * 6);
-                final var currTotal = UNSAFE.getLong(sparseLinearOffset + Integer.BYTES * 2);
-                final var currCount = UNSAFE.getInt(sparseLinearOffset + Integer.BYTES * 4);
-
-                UNSAFE.putLong(sparseLinearOffset + Integer.BYTES * 2, currTotal + temperature);
-                UNSAFE.putInt(sparseLinearOffset + Integer.BYTES * 4, currCount + count);
+                sparseLinearOffset += SPARSE_SCALE;
+                if (sparseLinearOffset == this.sparseEnd) {
+                    sparseLinearOffset = this.sparseAddress;
+                }
+            }
 
-                if (temperatureMin < currMin) {
-                    UNSAFE.putInt(sparseLinearOffset + Integer.BYTES * 5, temperatureMin);
+            if (this.oldSparseAddress != 0L) {
+                final var oldOffset = this.findInOldSparse(hash, keyAddress, keyLength);
+                if (oldOffset != 0L) {
+                    // not migrated yet, the migration copies the entry as it is then
+                    update(oldOffset, temperature, count, temperatureMin, temperatureMax);
+                    return n;
                 }
+            }
+
+            final var storedKeyAddress = this.copyKeys ? this.copyKey(keyAddress, keyLength) : keyAddress;
+            this.add(sparseLinearOffset, storedKeyAddress, keyLength, temperature, count, temperatureMin, temperatureMax);
+            this.size++;
+            return n;
+        }
 
-                if (temperatureMax > currMax) {
-                    UNSAFE.putInt(sparseLinearOffset + Integer.BYTES * 6, temperatureMax);
+        private long findInOldSparse(final long hash, final long keyAddress, final int keyLength) {
+            var sparseLinearOffset = this.oldSparseAddress + truncateHash(hash, this.oldHashBits) * SPARSE_SCALE;
+            while (true) {
+                final var entryKeyAddress = getLong(sparseLinearOffset);
+                if (entryKeyAddress == 0L) {
+                    return 0L;
+                }
+                if (!mismatch(keyAddress, entryKeyAddress, keyLength)) {
+                    return sparseLinearOffset;
+                }
+                sparseLinearOffset += SPARSE_SCALE;
+                if (sparseLinearOffset == this.oldSparseEnd) {
+                    sparseLinearOffset = this.oldSparseAddress;
                 }
+            }
+        }
 
-                return;
+        private static void update(final long sparseOffset,
+                                   final long temperature,
+                                   final int count,
+                                   final int temperatureMin,
+                                   final int temperatureMax) {
+            final var currMin = getInt(sparseOffset + Integer.BYTES * 5);
+            final var currMax = getInt(sparseOffset + Integer.BYTES * 6);
+            final var currTotal = getLong(sparseOffset + Integer.BYTES * 2);
+            final var currCount = getInt(sparseOffset + Integer.BYTES * 4);
+
+            final int newCount;
+            try {
+                newCount = Math.addExact(currCount, count);
+            }
+            catch (ArithmeticException e) {
+                throw new IllegalStateException(STR."More than \{Integer.MAX_VALUE} rows for one station", e);
+            }
+            putLong(sparseOffset + Integer.BYTES * 2, currTotal + temperature);
+            putInt(sparseOffset + Integer.BYTES * 4, newCount);
+
+            if (temperatureMin < currMin) {
+                putInt(sparseOffset + Integer.BYTES * 5, temperatureMin);
+            }
+
+            if (temperatureMax > currMax) {
+                putInt(sparseOffset + Integer.BYTES * 6, temperatureMax);
             }
         }
 
         public void merge(final HashTable other) {
+            if (HASH_STATS) {
+                this.lookups += other.lookups;
+                this.collisions += other.collisions;
+                this.maxProbeLength = Math.max(this.maxProbeLength, other.maxProbeLength);
+            }
+
             final var otherSize = other.size;
             for (long i = 0; i < otherSize; i++) {
                 final var offset = other.getOffset(i);
 
-                final var keyAddress = UNSAFE.getLong(offset);
-                final var keyLength = UNSAFE.getInt(offset + Integer.BYTES * 7);
+                final var keyAddress = getLong(offset);
+                final var keyLength = getInt(offset + Integer.BYTES * 7);
                 final var hash = hash(keyAddress, keyLength);
 
                 this.putEntryInternal(
                         hash,
                         keyAddress,
                         keyLength,
-                        UNSAFE.getLong(offset + Integer.BYTES * 2),
-                        UNSAFE.getInt(offset + Integer.BYTES * 4),
-                        UNSAFE.getInt(offset + Integer.BYTES * 5),
-                        UNSAFE.getInt(offset + Integer.BYTES * 6));
+                        getLong(offset + Integer.BYTES * 2),
+                        getInt(offset + Integer.BYTES * 4),
+                        getInt(offset + Integer.BYTES * 5),
+                        getInt(offset + Integer.BYTES * 6));
             }
         }
 
@@ -377,14 +1245,14 @@ public class CalculateAverage_linl33 {
                          final int temperatureMax) {
             // new entry, initialize sparse and dense
             final var denseOffset = this.denseAddress + this.size * DENSE_SCALE;
-            UNSAFE.putLong(denseOffset, sparseOffset);
-
-            UNSAFE.putLong(sparseOffset, keyAddress);
-            UNSAFE.putLong(sparseOffset + Integer.BYTES * 2, temperature);
-            UNSAFE.putInt(sparseOffset + Integer.BYTES * 4, count);
-            UNSAFE.putInt(sparseOffset + Integer.BYTES * 5, temperatureMin);
-            UNSAFE.putInt(sparseOffset + Integer.BYTES * 6, temperatureMax);
-            UNSAFE.putInt(sparseOffset + Integer.BYTES * 7, keyLength);
+            putLong(denseOffset, sparseOffset);
+
+            putLong(sparseOffset, keyAddress);
+            putLong(sparseOffset + Integer.BYTES * 2, temperature);
+            putInt(sparseOffset + Integer.BYTES * 4, count);
+            putInt(sparseOffset + Integer.BYTES * 5, temperatureMin);
+            putInt(sparseOffset + Integer.BYTES * 6, temperatureMax);
+            putInt(sparseOffset + Integer.BYTES * 7, keyLength);
         }
 
         private static boolean mismatch(final long leftAddr, final long rightAddr, final int length) {
@@ -409,10 +1277,35 @@ public class CalculateAverage_linl33 {
             // a comparison to lowestZero = ~eqMask & (eqMask + 1)
         }
 
+        private static long hash(final long keyAddress, final int keyLength) {
+            return FULL_KEY_HASH ? fullKeyHash(keyAddress, keyLength) : fastHash(keyAddress, keyLength);
+        }
+
+        // Hash every byte of the key, 8 bytes at a time, seeded per run
+        // keys sharing a prefix and a suffix no longer end up in the same probe chain
+        private static long fullKeyHash(final long keyAddress, final int keyLength) {
+            var hash = HASH_SEED ^ (keyLength * 0x9e3779b97f4a7c15L);
+            var i = 0;
+            for (; i + Long.BYTES <= keyLength; i += Long.BYTES) {
+                hash = Long.rotateLeft(hash ^ (getLong(keyAddress + i) * 0xc2b2ae3d27d4eb4fL), 31) * 0x9e3779b97f4a7c15L;
+            }
+            if (i < keyLength) {
+                // the key is followed by at least ";0.0\n", the bytes read past its end are masked off
+                final var tail = getLong(keyAddress + i) & (-1L >>> ((Long.BYTES - (keyLength - i)) * Byte.SIZE));
+                hash = Long.rotateLeft(hash ^ (tail * 0xc2b2ae3d27d4eb4fL), 31) * 0x9e3779b97f4a7c15L;
+            }
+            // murmur3 fmix64, spreads the entropy into the low bits kept by truncateHash
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            return hash ^ (hash >>> 33);
+        }
+
         // Use the leading and trailing few bytes as hash
         // this performs better than computing a good hash
-        private static long hash(final long keyAddress, final int keyLength) {
-            final var leadingQWord = UNSAFE.getLong(keyAddress);
+        private static long fastHash(final long keyAddress, final int keyLength) {
+            final var leadingQWord = getLong(keyAddress);
             // the constant is the 64 bit FNV-1 offset basis
             final var hash = -3750763034362895579L ^ leadingQWord;
             if (keyLength < Integer.BYTES) {
@@ -420,14 +1313,14 @@ public class CalculateAverage_linl33 {
                 return hash & 0xffffL;
             }
             else {
-                final var trailingDWord = UNSAFE.getLong(keyAddress + keyLength - Integer.BYTES) & 0xffffffffL;
+                final var trailingDWord = getLong(keyAddress + keyLength - Integer.BYTES) & 0xffffffffL;
                 // only the lower dword in hash is guaranteed to exist so shift left 32
                 return (hash << Integer.SIZE) ^ trailingDWord;
             }
         }
 
-        private static long truncateHash(final long hash) {
-            return ((hash >>> TRUNCATED_HASH_BITS) ^ hash) & ((1L << TRUNCATED_HASH_BITS) - 1L);
+        private static long truncateHash(final long hash, final int hashBits) {
+            return ((hash >>> hashBits) ^ hash) & ((1L << hashBits) - 1L);
         }
     }
 
@@ -509,11 +1402,4 @@ public class CalculateAverage_linl33 {
             }
         }
     }
-
-    private record AggregatedMeasurement(String name, long id) implements Comparable<AggregatedMeasurement> {
-
-    @Override
-    public int compareTo(final AggregatedMeasurement other) {
-        return name.compareTo(other.name);
-    }
-}}
+}
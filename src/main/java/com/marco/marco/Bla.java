@@ -2,34 +2,68 @@ package com.marco.marco;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dev.morling.onebrc.Aggregator;
+import dev.morling.onebrc.ResultFormatter;
 
 public class Bla {
 
+    private static final String SPLIT_MODE_PROPERTY = "com.marco.marco.Bla.splitMode";
+    private static final Thread.Builder WORKER_THREADS = Thread.ofPlatform().name("Worker-Thread-", 0);
+
+    /**
+     * How the input is divided between the worker threads.
+     * <ul>
+     * <li>{@code LINES}: count all lines up front, every worker skips to its first line with {@code readLine()}</li>
+     * <li>{@code BYTES}: split by byte offset, aligned to the next newline, every byte is read exactly once</li>
+     * </ul>
+     */
+    public enum SplitMode {
+        LINES,
+        BYTES
+    }
+
     public static class FooRunnable implements Runnable {
 
         public final FileSection fileSection;
         public final Path path;
-        private HashMap<String, Stats> cityToStats;
+        public final SplitMode splitMode;
+        private HashMap<String, PartialAggregate> cityToStats;
 
         public FooRunnable(FileSection section, Path path) {
+            this(section, path, SplitMode.BYTES);
+        }
+
+        public FooRunnable(FileSection section, Path path, SplitMode splitMode) {
             this.fileSection = section;
             this.path = path;
+            this.splitMode = splitMode;
         }
 
         @Override
         public void run() {
             try {
-                Map<String, List<Measurement>> cityToMeasurements = readLines(path, fileSection.startLine, fileSection.endLine);
+                Map<String, StationAccumulator> cityToAccumulator = switch (splitMode) {
+                    case LINES -> readLines(path, fileSection.start, fileSection.end);
+                    case BYTES -> readSection(path, fileSection.start, fileSection.end);
+                };
 
                 this.cityToStats = new HashMap<>();
 
-                cityToMeasurements.forEach((key, value) -> {
-                    Stats stats = calculateStats(value);
-                    cityToStats.put(key, stats);
-                });
+                cityToAccumulator.forEach((key, value) -> cityToStats.put(key, value.toPartialAggregate()));
 
             }
             catch (IOException e) {
@@ -37,11 +71,48 @@ public class Bla {
             }
         }
 
-        public HashMap<String, Stats> getCityToStats() {
+        public HashMap<String, PartialAggregate> getCityToStats() {
             return cityToStats;
         }
     }
 
+    /**
+     * Keeps the worker threads between calls, see {@link Aggregator}.
+     */
+    public static final class Engine implements Aggregator {
+        private final int threads;
+        private final SplitMode splitMode;
+        private final ExecutorService executor;
+
+        public Engine(int threads) {
+            this(threads, SplitMode.valueOf(System.getProperty(SPLIT_MODE_PROPERTY, SplitMode.BYTES.name())));
+        }
+
+        public Engine(int threads, SplitMode splitMode) {
+            this.threads = threads;
+            this.splitMode = splitMode;
+            this.executor = Executors.newFixedThreadPool(threads, WORKER_THREADS.factory());
+        }
+
+        @Override
+        public ResultFormatter aggregate(Path path) throws IOException {
+            Map<String, PartialAggregate> cityToAggregate = Bla.aggregate(path, threads, splitMode, executor);
+
+            ResultFormatter result = new ResultFormatter(cityToAggregate.size());
+            cityToAggregate.forEach((city, aggregate) -> {
+                byte[] name = city.getBytes(StandardCharsets.UTF_8);
+                result.add(name, 0, name.length, (int) Math.round(aggregate.min() * 10.0), (int) Math.round(aggregate.max() * 10.0),
+                        Math.round(aggregate.sum() * 10.0), aggregate.count());
+            });
+            return result;
+        }
+
+        @Override
+        public void close() {
+            executor.close();
+        }
+    }
+
     public static void main(String[] args) throws IOException {
         int threads = Runtime.getRuntime().availableProcessors();
 
@@ -52,9 +123,58 @@ public class Bla {
          * 
          * }
          */
-        long lineCount = Files.lines(path).count();
+        try (Engine engine = new Engine(threads)) {
+            engine.aggregate(path).writeToStdout();
+        }
+
+        long end = System.nanoTime();
+        long time = (end - start) / 1_000_000;
+        System.out.println("Took " + time + " ms");
 
-        System.out.println("lineCount: " + lineCount);
+    }
+
+    /**
+     * Splits the file into {@code threads} sections and aggregates them on {@code executor}.
+     */
+    public static Map<String, PartialAggregate> aggregate(Path path, int threads, SplitMode splitMode, ExecutorService executor) throws IOException {
+        FileSection[] fileSections = switch (splitMode) {
+            case LINES -> splitByLines(path, threads);
+            case BYTES -> splitByBytes(path, threads);
+        };
+
+        List<FooRunnable> fooRunnables = new ArrayList<>();
+        List<Future<?>> workers = new ArrayList<>();
+        for (FileSection fileSection : fileSections) {
+            FooRunnable task = new FooRunnable(fileSection, path, splitMode);
+            fooRunnables.add(task);
+            workers.add(executor.submit(task));
+        }
+
+        // Wait for all tasks to complete
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Restore interrupt status
+                throw new IOException("Interrupted while reading " + path, e);
+            }
+            catch (ExecutionException e) {
+                throw new IOException("Reading " + path + " failed", e.getCause());
+            }
+        }
+
+        // single pass over every worker map, each entry is folded into the global map exactly once
+        Map<String, PartialAggregate> cityToAggregate = new HashMap<>();
+        fooRunnables.forEach(f -> f.getCityToStats().forEach((city, partial) -> cityToAggregate.merge(city, partial, PartialAggregate::merge)));
+        return cityToAggregate;
+    }
+
+    public static FileSection[] splitByLines(Path path, int threads) throws IOException {
+        long lineCount;
+        try (var lines = Files.lines(path)) {
+            lineCount = lines.count();
+        }
 
         long currentLine = 0;
         long linesPerThread = lineCount / threads;
@@ -72,107 +192,209 @@ public class Bla {
             fileSections[i] = new FileSection(startLine, endLine);
             currentLine = endLine;
         }
+        return fileSections;
+    }
 
-        List<FooRunnable> fooRunnables = new ArrayList<>();
-        Thread[] workers = new Thread[threads];
-        for (int i = 0; i < workers.length; i++) {
-            FooRunnable task = new FooRunnable(fileSections[i], path);
-            fooRunnables.add(task);
-            workers[i] = new Thread(task);
-            workers[i].setName("Worker-Thread-" + i);
-            workers[i].start();
-        }
+    public static FileSection[] splitByBytes(Path path, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long chunkSize = fileSize / threads;
 
-        // Wait for all threads to complete
-        for (Thread thread : workers) {
-            try {
-                thread.join();
-            }
-            catch (InterruptedException e) {
-                System.err.println("Thread interrupted: " + e.getMessage());
-                Thread.currentThread().interrupt(); // Restore interrupt status
+            FileSection[] fileSections = new FileSection[threads];
+            long currentPos = 0;
+            for (int i = 0; i < threads; i++) {
+                long startPos = currentPos;
+                long endPos = (i == threads - 1) ? fileSize : findNextLineStart(channel, startPos + chunkSize, fileSize);
+
+                fileSections[i] = new FileSection(startPos, endPos);
+                currentPos = endPos;
             }
+            return fileSections;
         }
+    }
 
-        Set<String> cities = new HashSet<>();
-        fooRunnables.forEach(f -> {
-            cities.addAll(f.getCityToStats().keySet());
-        });
+    private static long findNextLineStart(FileChannel channel, long approximatePos, long fileSize) throws IOException {
+        if (approximatePos >= fileSize) {
+            return fileSize;
+        }
 
-        cities.forEach(city -> {
-            List<Stats> allStats = new ArrayList<>();
-            fooRunnables.forEach(f -> {
-                HashMap<String, Stats> cityToStats = f.getCityToStats();
-                if (cityToStats.containsKey(city)) {
-                    Stats stats = cityToStats.get(city);
-                    allStats.add(stats);
-                }
-            });
-            double globalMin = Math.round(allStats.stream().mapToDouble(r -> r.min).min().getAsDouble() * 10.0) / 10.0;;
-            double globalMax = Math.round(allStats.stream().mapToDouble(r -> r.max).max().getAsDouble() * 10.0) / 10.0;;
-            double globalMean = Math.round(allStats.stream().mapToDouble(r -> r.sum).sum() / allStats.size() * 10.0) / 10.0;;
-            System.out.println(globalMin + "/" + globalMean + "/" + globalMax);
-        });
+        ByteBuffer searchBuffer = ByteBuffer.allocate(8192);
+        long searchPos = approximatePos;
 
-        long end = System.nanoTime();
-        long time = (end - start) / 1_000_000;
-        System.out.println("Took " + time + " ms");
+        while (searchPos < fileSize) {
+            searchBuffer.clear();
+            int bytesRead = channel.read(searchBuffer, searchPos);
+            if (bytesRead == -1) {
+                return fileSize;
+            }
 
+            searchBuffer.flip();
+            while (searchBuffer.hasRemaining()) {
+                if (searchBuffer.get() == '\n') {
+                    return searchPos + searchBuffer.position();
+                }
+            }
+            searchPos += bytesRead;
+        }
+        return fileSize;
     }
 
-    public static Map<String, List<Measurement>> readLines(Path path, long startLine, long endLine) throws IOException {
-        Map<String, List<Measurement>> lines = new HashMap<>();
+    public static Map<String, StationAccumulator> readSection(Path path, long startPos, long endPos) throws IOException {
+        Map<String, StationAccumulator> lines = new HashMap<>();
+
+        // startPos and endPos are aligned to line starts, so the section holds complete lines only
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new SectionInputStream(channel, startPos, endPos), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.isBlank())
+                    continue;
+                accumulate(lines, line);
+            }
+        }
+        return lines;
+    }
+
+    public static Map<String, StationAccumulator> readLines(Path path, long startLine, long endLine) throws IOException {
+        Map<String, StationAccumulator> lines = new HashMap<>();
 
         // Each thread gets its own BufferedReader - no synchronization needed
         try (BufferedReader reader = Files.newBufferedReader(path)) {
-            // Skip to start line
-            for (int i = 1; i < startLine; i++) {
+            // Skip the lines before the section, line numbers start at 0
+            for (long i = 0; i < startLine; i++) {
                 if (reader.readLine() == null)
                     return lines;
             }
 
-            // Read the range
-            for (long lineNum = startLine; lineNum <= endLine; lineNum++) {
+            // Read the section, endLine is exclusive like in splitByLines
+            for (long lineNum = startLine; lineNum < endLine; lineNum++) {
                 String line = reader.readLine();
-                if (line == null || line.startsWith("#") || line.isBlank())
+                if (line == null)
                     break;
-                String[] split = line.split(";");
-                Measurement e = new Measurement(split[0], Double.valueOf(split[1]));
-                lines.putIfAbsent(e.city, new ArrayList<>());
-                lines.get(e.city).add(e);
+                if (line.startsWith("#") || line.isBlank())
+                    continue;
+                accumulate(lines, line);
             }
         }
         return lines;
     }
 
-    public static Stats calculateStats(List<Measurement> temperatures) {
-        if (temperatures.isEmpty()) {
-            throw new IllegalArgumentException("Array cannot be empty");
+    private static void accumulate(Map<String, StationAccumulator> cityToAccumulator, String line) {
+        int separator = line.indexOf(';');
+        String city = line.substring(0, separator);
+        double measurement = Double.parseDouble(line.substring(separator + 1));
+        cityToAccumulator.computeIfAbsent(city, k -> new StationAccumulator()).add(measurement);
+    }
+
+    /**
+     * Running min, max, sum and count of one station, so memory grows with the number of stations rather than the
+     * number of rows.
+     */
+    public static class StationAccumulator {
+
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum;
+        private long count;
+
+        public void add(double measurement) {
+            if (measurement < min)
+                min = measurement;
+            if (measurement > max)
+                max = measurement;
+            sum += measurement;
+            count++;
+        }
+
+        public PartialAggregate toPartialAggregate() {
+            if (count == 0) {
+                throw new IllegalStateException("No measurements accumulated");
+            }
+            return new PartialAggregate(min, max, sum, count);
         }
+    }
 
-        double min = temperatures.getFirst().measurement;
-        double max = temperatures.getFirst().measurement;
-        double sum = temperatures.getFirst().measurement;
+    /**
+     * Min, max, sum and count of one station over some part of the input. {@link #merge(PartialAggregate)} is
+     * associative and commutative, so worker results can be combined in any order.
+     */
+    public record PartialAggregate(double min, double max, double sum, long count) {
 
-        for (int i = 1; i < temperatures.size(); i++) {
-            double temp = temperatures.get(i).measurement;
-            if (temp < min)
-                min = temp;
-            if (temp > max)
-                max = temp;
-            sum += temp;
+        public PartialAggregate merge(PartialAggregate other) {
+            return new PartialAggregate(Math.min(min, other.min), Math.max(max, other.max), sum + other.sum, count + other.count);
         }
 
-        double mean = sum / temperatures.size();
-        return new Stats(min, mean, max, sum);
+        public double mean() {
+            // measurements have one decimal, so snap the sum back to tenths before dividing
+            return (Math.round(sum * 10.0) / 10.0) / count;
+        }
     }
 
-    public record Stats(double min, double mean, double max, double sum) {
+    /**
+     * Line numbers for {@link SplitMode#LINES}, byte offsets for {@link SplitMode#BYTES}; the end is exclusive for byte
+     * offsets.
+     */
+    public record FileSection(long start, long end) {
     }
 
-    public record Measurement(String city, Double measurement) {
-    }
+    /**
+     * Reads the bytes {@code [startPos, endPos)} of a channel with positional reads and closes the channel when done.
+     */
+    private static class SectionInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).flip();
+        private final long endPos;
+        private long position;
+
+        SectionInputStream(FileChannel channel, long startPos, long endPos) {
+            this.channel = channel;
+            this.position = startPos;
+            this.endPos = endPos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
 
-    public record FileSection(long startLine, long endLine) {
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+            if (position >= endPos) {
+                return false;
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), endPos - position));
+            int bytesRead = channel.read(buffer, position);
+            buffer.flip();
+            if (bytesRead <= 0) {
+                return false;
+            }
+            position += bytesRead;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
     }
 }
@@ -1,89 +1,715 @@
 package com.marco.marco;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+import dev.morling.onebrc.Aggregator;
+import dev.morling.onebrc.BatchResult;
+import dev.morling.onebrc.CpuAffinity;
+import dev.morling.onebrc.DelimiterScanner;
+import dev.morling.onebrc.MemoryAdvice;
+import dev.morling.onebrc.PositionalReader;
+import dev.morling.onebrc.ResultFormatter;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
 
 public class Bla2 {
 
-    static long start;
-
     private static final byte SEMICOLON = (byte) ';';
     private static final byte NEWLINE = (byte) '\n';
-    private static final byte CARRIAGE_RETURN = (byte) '\r';
+
+    private static final String SCHEDULING_PROPERTY = "com.marco.marco.Bla2.scheduling";
+    private static final String CHUNK_SIZE_PROPERTY = "com.marco.marco.Bla2.chunkSize";
+    private static final String MAPPING_PROPERTY = "com.marco.marco.Bla2.mapping";
+    private static final String FOLLOW_INTERVAL_PROPERTY = "com.marco.marco.Bla2.followInterval";
+    private static final String MADVISE_PROPERTY = "com.marco.marco.Bla2.madvise";
+    private static final String READ_BLOCK_SIZE_PROPERTY = "com.marco.marco.Bla2.readBlockSize";
+    private static final String DIRECT_IO_PROPERTY = "com.marco.marco.Bla2.directIo";
+    private static final String PIN_THREADS_PROPERTY = "com.marco.marco.Bla2.pinThreads";
+    private static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * How sections of the file are handed to the worker threads.
+     * <ul>
+     * <li>{@code STATIC}: one section of {@code fileSize / numThreads} bytes per thread</li>
+     * <li>{@code CHUNKED}: newline aligned chunks of {@code chunkSize} bytes, pulled by the workers from a shared cursor
+     * until none are left, so a slow thread only holds up its current chunk. With pinned threads, every worker first
+     * pulls from its own contiguous share of the chunks and only then from the others, so the same chunks end up on
+     * the same CPU in every run</li>
+     * </ul>
+     */
+    public enum Scheduling {
+        STATIC,
+        CHUNKED
+    }
+
+    /**
+     * How the file is brought into memory.
+     * <ul>
+     * <li>{@code SECTIONS}: every section is mapped on its own as a {@link MappedByteBuffer}, sections over 2 GB are
+     * remapped in pieces</li>
+     * <li>{@code FILE}: the whole file is mapped once as a {@link MemorySegment} and sliced per section</li>
+     * <li>{@code READ}: nothing is mapped, every section is read with positional reads into pooled direct buffers,
+     * see {@link PositionalReader}</li>
+     * </ul>
+     */
+    public enum Mapping {
+        SECTIONS,
+        FILE,
+        READ
+    }
+
+    private static final Thread.Builder WORKER_THREADS = Thread.ofPlatform().name("Worker-Thread-", 0);
+
+    private final Scheduling scheduling;
+    private final long chunkSize;
+    private final Mapping mapping;
+    private final MemoryAdvice advice;
+    private final PositionalReader reader;
+    private final CpuAffinity affinity;
+
+    public Bla2() {
+        this(Scheduling.valueOf(System.getProperty(SCHEDULING_PROPERTY, Scheduling.CHUNKED.name())),
+                Long.getLong(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE),
+                Mapping.valueOf(System.getProperty(MAPPING_PROPERTY, Mapping.FILE.name())),
+                // comma separated madvise hints, e.g. "sequential,dontneed"
+                MemoryAdvice.parse(System.getProperty(MADVISE_PROPERTY)),
+                new PositionalReader(Integer.getInteger(READ_BLOCK_SIZE_PROPERTY, PositionalReader.DEFAULT_BLOCK_SIZE),
+                        Boolean.getBoolean(DIRECT_IO_PROPERTY)),
+                CpuAffinity.create(Boolean.getBoolean(PIN_THREADS_PROPERTY)));
+    }
+
+    public Bla2(Scheduling scheduling, long chunkSize) {
+        this(scheduling, chunkSize, Mapping.FILE);
+    }
+
+    public Bla2(Scheduling scheduling, long chunkSize, Mapping mapping) {
+        this(scheduling, chunkSize, mapping, MemoryAdvice.NONE);
+    }
+
+    /**
+     * @param advice madvise hints for the mappings, applied per mapping and per section
+     */
+    public Bla2(Scheduling scheduling, long chunkSize, Mapping mapping, MemoryAdvice advice) {
+        this(scheduling, chunkSize, mapping, advice, new PositionalReader());
+    }
+
+    /**
+     * @param reader reads the sections with {@link Mapping#READ}, its buffers are reused across calls
+     */
+    public Bla2(Scheduling scheduling, long chunkSize, Mapping mapping, MemoryAdvice advice, PositionalReader reader) {
+        this(scheduling, chunkSize, mapping, advice, reader, CpuAffinity.NONE);
+    }
+
+    /**
+     * @param affinity pins worker {@code i} to the same CPU in every call; tables live on the Java heap, so they are
+     *                 only local to that CPU's NUMA node with {@code -XX:+UseNUMA}
+     */
+    public Bla2(Scheduling scheduling, long chunkSize, Mapping mapping, MemoryAdvice advice, PositionalReader reader, CpuAffinity affinity) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.scheduling = scheduling;
+        this.chunkSize = chunkSize;
+        this.mapping = mapping;
+        this.advice = advice;
+        this.reader = reader;
+        this.affinity = affinity;
+    }
 
     public static void main(String[] args) throws IOException {
         Path path = Path.of("./measurements.txt");
 
-        start = System.nanoTime();
-        new Bla2().process(path, Runtime.getRuntime().availableProcessors());
+        // with a poll interval in ms, keep printing the result whenever lines are appended until killed
+        Long followInterval = Long.getLong(FOLLOW_INTERVAL_PROPERTY);
+        if (followInterval != null) {
+            try (Follower follower = new Follower(path, Runtime.getRuntime().availableProcessors())) {
+                follower.follow(Duration.ofMillis(followInterval), result -> {
+                    try {
+                        result.writeToStdout();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        StationTable result = new Bla2().process(path, Runtime.getRuntime().availableProcessors());
+        format(result).writeToStdout();
 
         long end = System.nanoTime();
         long time = (end - start) / 1_000_000;
-        System.out.println("Took " + time + " ms");
+        System.err.println("Took " + time + " ms");
     }
 
     private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE - 1024; // Leave some headroom
 
-    public void process(Path file, int numThreads) throws IOException {
-        long fileSize = Files.size(file);
-        long chunkSize = fileSize / numThreads;
-
+    public StationTable process(Path file, int numThreads) throws IOException {
+        try (ExecutorService executor = Executors.newFixedThreadPool(numThreads, WORKER_THREADS.factory())) {
+            return process(file, numThreads, executor);
+        }
+    }
 
+    /**
+     * Runs {@code numThreads} workers on {@code executor}, which needs at least that many threads.
+     */
+    public StationTable process(Path file, int numThreads, ExecutorService executor) throws IOException {
         try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
-            List<FileSection> sections = splitInSections(numThreads, fileSize, chunkSize, channel);
-            logTime();
+            return processRange(file, channel, 0, channel.size(), numThreads, executor);
+        }
+    }
 
-            Thread[] workers = new Thread[numThreads];
-            for (int i = 0; i < workers.length; i++) {
+    /**
+     * Aggregates the lines in {@code [rangeStart, rangeEnd)} of {@code file}, both must be line starts. Only that
+     * range is mapped.
+     */
+    private StationTable processRange(Path file, FileChannel channel, long rangeStart, long rangeEnd, int numThreads, ExecutorService executor)
+            throws IOException {
+        long rangeSize = rangeEnd - rangeStart;
+
+        // finished workers hand their table over here; whoever finds a table waiting merges it into its own and
+        // tries again, so the merges run on the workers and only one table is left once all of them are done
+        AtomicReference<StationTable> handoff = new AtomicReference<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try (Arena arena = Arena.ofShared();
+             PositionalReader.Source source = mapping == Mapping.READ ? reader.open(file) : null) {
+            // one mapping for the whole range, no 2 GB limit; unmapped when the arena is closed
+            MemorySegment fileSegment = mapping == Mapping.FILE
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, rangeStart, rangeSize, arena)
+                    : null;
+            if (fileSegment != null) {
+                advice.onMapping(fileSegment.address(), rangeSize);
+            }
+
+            List<FileSection> sections = switch (scheduling) {
+                case STATIC -> splitInSections(numThreads, rangeStart, rangeEnd, rangeSize / numThreads, channel);
+                case CHUNKED -> splitInSections((int) Math.max(1, (rangeSize + chunkSize - 1) / chunkSize), rangeStart, rangeEnd, chunkSize, channel);
+            };
+
+            // pinned, worker i owns the i-th contiguous share of the chunks and is the first to touch their pages;
+            // unpinned, there is one share that all workers pull from
+            int groups = affinity.isEnabled() ? numThreads : 1;
+            AtomicInteger[] nextSection = new AtomicInteger[groups];
+            for (int g = 0; g < groups; g++) {
+                nextSection[g] = new AtomicInteger((int) ((long) sections.size() * g / groups));
+            }
+            List<Future<?>> workers = new ArrayList<>(numThreads);
+            for (int i = 0; i < numThreads; i++) {
                 int finalI = i;
-                workers[i] = new Thread(() -> {
+                workers.add(executor.submit(() -> {
                     try {
-                        processLargeSection(channel, file, sections.get(finalI));
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+                        affinity.pin(finalI);
+                        StationTable table = new StationTable();
+                        if (scheduling == Scheduling.STATIC) {
+                            processSection(channel, fileSegment, rangeStart, source, sections.get(finalI), table);
+                        } else {
+                            // once its own share is done, a worker helps with the others
+                            for (int k = 0; k < groups; k++) {
+                                int group = (finalI + k) % groups;
+                                int groupEnd = (int) ((long) sections.size() * (group + 1) / groups);
+                                int index;
+                                while ((index = nextSection[group].getAndIncrement()) < groupEnd) {
+                                    processSection(channel, fileSegment, rangeStart, source, sections.get(index), table);
+                                }
+                            }
+                        }
+                        publish(handoff, table);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
                     }
-                });
-                workers[i].setName("Worker-Thread-" + i);
-                workers[i].start();
+                }));
+            }
+
+            awaitAll(workers, file);
+        }
+
+        if (failure.get() != null) {
+            throw new IOException("Processing " + file + " failed", failure.get());
+        }
+        StationTable result = handoff.get();
+        return result != null ? result : new StationTable();
+    }
+
+    /**
+     * Aggregates all {@code files} with one set of workers. Files larger than {@code chunkSize} are split into newline
+     * aligned chunks that the {@code numThreads} workers on {@code executor} pull from, largest files first; a worker
+     * that finds no chunk left in the current file moves on to the next one, so the chunks of the last files fill in
+     * for workers that would otherwise wait. Smaller files are processed whole, each on its own virtual thread.
+     * <p>
+     * Files are only opened and mapped when their turn comes, and at most {@code 2 * numThreads} of them are open at a
+     * time. As soon as the last chunk of a file is done, its table is handed to {@code onResult} and its mapping and
+     * channel are released, so memory grows with the window rather than with the number of files.
+     *
+     * @param onResult called once per file with its table and its index in {@code files}, from the thread that
+     *                 finished the file, possibly for several files at once
+     */
+    public void processAll(List<Path> files, int numThreads, ExecutorService executor, ObjIntConsumer<StationTable> onResult) throws IOException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Semaphore openFiles = new Semaphore(2 * numThreads);
+
+        List<BatchFile> largeFiles = new ArrayList<>();
+        List<BatchFile> smallFiles = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            BatchFile file = new BatchFile(i, files.get(i), Files.size(files.get(i)));
+            (file.size > chunkSize ? largeFiles : smallFiles).add(file);
+        }
+        largeFiles.sort(Comparator.comparingLong((BatchFile file) -> file.size).reversed());
+        BatchQueue queue = new BatchQueue(largeFiles, openFiles, failure);
+
+        try {
+            // closing the executor waits for the small files
+            try (ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (BatchFile file : smallFiles) {
+                    virtualThreads.submit(() -> {
+                        try {
+                            // the table counts towards the window too: allocate it under the permit and hand it off before releasing
+                            openFiles.acquire();
+                            try {
+                                StationTable table = new StationTable();
+                                try {
+                                    file.open();
+                                    processSection(file.channel, file.segment, 0, file.source, new FileSection(0, file.size, 0), table);
+                                } finally {
+                                    file.close();
+                                }
+                                onResult.accept(table, file.index);
+                            } finally {
+                                openFiles.release();
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    });
+                }
+
+                List<Future<?>> workers = new ArrayList<>(numThreads);
+                for (int w = 0; w < numThreads; w++) {
+                    int worker = w;
+                    workers.add(executor.submit(() -> {
+                        try {
+                            affinity.pin(worker);
+                            // a worker keeps one table per file it is working on and hands it over when it moves on
+                            BatchFile file = queue.next(null);
+                            StationTable table = null;
+                            int claimed = 0;
+                            while (file != null) {
+                                int index = file.nextSection.getAndIncrement();
+                                if (index < file.sections.size()) {
+                                    if (table == null) {
+                                        table = new StationTable();
+                                    }
+                                    try {
+                                        processSection(file.channel, file.segment, 0, file.source, file.sections.get(index), table);
+                                    } catch (Throwable e) {
+                                        // the chunk still counts as done, so the file is released
+                                        failure.compareAndSet(null, e);
+                                    }
+                                    claimed++;
+                                    continue;
+                                }
+                                if (claimed > 0 && file.publish(table, claimed)) {
+                                    complete(file, openFiles, failure, onResult);
+                                }
+                                table = null;
+                                claimed = 0;
+                                file = queue.next(file);
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }));
+                }
+
+                awaitAll(workers, files);
+            }
+        } finally {
+            // only files that failed half way are still open
+            for (BatchFile file : largeFiles) {
+                file.close();
             }
+        }
 
-            for (Thread worker : workers) {
+        if (failure.get() != null) {
+            throw new IOException("Processing " + files + " failed", failure.get());
+        }
+    }
+
+    /**
+     * Waits for all {@code workers}, also when interrupted: they still read the mappings the caller releases next.
+     * An interrupt is then restored and reported as an {@link IOException}.
+     *
+     * @param input the file or files being processed, for the message
+     */
+    private static void awaitAll(List<Future<?>> workers, Object input) throws IOException {
+        boolean interrupted = false;
+        Throwable failure = null;
+        for (Future<?> worker : workers) {
+            while (true) {
                 try {
-                    worker.join();
+                    worker.get();
+                    break;
                 } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    failure = failure != null ? failure : e.getCause();
+                    break;
                 }
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt(); // Restore interrupt status
+            throw new IOException("Interrupted while processing " + input);
+        }
+        if (failure != null) {
+            throw new IOException("Processing " + input + " failed", failure);
+        }
+    }
+
+    private static void complete(BatchFile file, Semaphore openFiles, AtomicReference<Throwable> failure, ObjIntConsumer<StationTable> onResult) {
+        try {
+            file.close();
+            openFiles.release();
+            if (failure.get() == null) {
+                onResult.accept(file.handoff.getAndSet(null), file.index);
+            }
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+    }
 
+    /**
+     * The large files of a batch, opened one after the other as the workers run out of chunks.
+     */
+    private final class BatchQueue {
+        private final List<BatchFile> files;
+        private final Semaphore openFiles;
+        private final AtomicReference<Throwable> failure;
+        private int nextFile;
+        private BatchFile current;
+
+        BatchQueue(List<BatchFile> files, Semaphore openFiles, AtomicReference<Throwable> failure) {
+            this.files = files;
+            this.openFiles = openFiles;
+            this.failure = failure;
+        }
 
+        /**
+         * @param exhausted the file the caller found no chunk left in, {@code null} at the start
+         * @return the file to pull chunks from, {@code null} once all files are handed out
+         */
+        synchronized BatchFile next(BatchFile exhausted) {
+            if (current != exhausted) {
+                // another worker already moved on
+                return current;
+            }
+            current = null;
+            while (nextFile < files.size()) {
+                BatchFile file = files.get(nextFile++);
+                try {
+                    // waits for an earlier file to complete, its workers never need this lock to get there
+                    openFiles.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure.compareAndSet(null, e);
+                    nextFile = files.size();
+                    return null;
+                }
+                try {
+                    file.open();
+                    file.sections = splitInSections((int) ((file.size + chunkSize - 1) / chunkSize), 0, file.size, chunkSize, file.channel);
+                    file.remaining.set(file.sections.size());
+                    current = file;
+                    return file;
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                    try {
+                        file.close();
+                    } catch (IOException closeFailure) {
+                        e.addSuppressed(closeFailure);
+                    }
+                    openFiles.release();
+                }
+            }
+            return null;
+        }
     }
 
-    private static void logTime() {
-        long end = System.nanoTime();
-        long time = (end - start) / 1_000_000;
-        System.out.println("Took " + time + " ms to split into chunks");
-        start = System.nanoTime();
+    /**
+     * One file of a batch, only open while its chunks are being processed.
+     */
+    private final class BatchFile {
+        final int index;
+        final Path path;
+        final long size;
+        final AtomicInteger nextSection = new AtomicInteger();
+        // # of chunks not yet in handoff, the file is complete at 0
+        final AtomicInteger remaining = new AtomicInteger();
+        final AtomicReference<StationTable> handoff = new AtomicReference<>();
+        List<FileSection> sections = List.of();
+
+        FileChannel channel;
+        Arena arena;
+        MemorySegment segment;
+        PositionalReader.Source source;
+
+        BatchFile(int index, Path path, long size) {
+            this.index = index;
+            this.path = path;
+            this.size = size;
+        }
+
+        void open() throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            if (mapping == Mapping.FILE) {
+                arena = Arena.ofShared();
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+                advice.onMapping(segment.address(), size);
+            } else if (mapping == Mapping.READ) {
+                source = reader.open(path);
+            }
+        }
+
+        /**
+         * Hands over the table of {@code chunks} chunks.
+         *
+         * @return whether these were the last chunks of the file
+         */
+        boolean publish(StationTable table, int chunks) {
+            Bla2.publish(handoff, table);
+            return remaining.addAndGet(-chunks) <= 0;
+        }
+
+        /**
+         * Unmaps and closes the file, may be called more than once.
+         */
+        synchronized void close() throws IOException {
+            if (arena != null) {
+                arena.close();
+                arena = null;
+                segment = null;
+            }
+            try (FileChannel openChannel = channel; PositionalReader.Source openSource = source) {
+                channel = null;
+                source = null;
+            }
+        }
+    }
+
+    /**
+     * Keeps the worker threads between calls, see {@link Aggregator}.
+     */
+    public static final class Engine implements Aggregator {
+        private final Bla2 bla2;
+        private final int numThreads;
+        private final ExecutorService executor;
+
+        public Engine(int numThreads) {
+            this(new Bla2(), numThreads);
+        }
+
+        public Engine(Bla2 bla2, int numThreads) {
+            this.bla2 = bla2;
+            this.numThreads = numThreads;
+            this.executor = Executors.newFixedThreadPool(numThreads, WORKER_THREADS.factory());
+        }
+
+        @Override
+        public ResultFormatter aggregate(Path file) throws IOException {
+            return format(bla2.process(file, numThreads, executor));
+        }
+
+        @Override
+        public BatchResult aggregateAll(List<Path> files, boolean combined) throws IOException {
+            ResultFormatter[] formatted = new ResultFormatter[files.size()];
+            StationTable total = combined ? new StationTable() : null;
+            // every file is folded in as soon as it is done, its table is not kept until the end of the batch
+            bla2.processAll(files, numThreads, executor, (table, index) -> {
+                formatted[index] = format(table);
+                if (total != null) {
+                    synchronized (total) {
+                        total.merge(table);
+                    }
+                }
+            });
+
+            Map<Path, ResultFormatter> results = new LinkedHashMap<>();
+            for (int i = 0; i < formatted.length; i++) {
+                results.put(files.get(i), formatted[i]);
+            }
+            return new BatchResult(results, total != null ? format(total) : null);
+        }
+
+        @Override
+        public void close() {
+            executor.close();
+        }
+    }
+
+    /**
+     * Incrementally aggregates a file that keeps being appended to. Every {@link #refresh()} maps only the complete
+     * lines appended since the previous one and merges them into the running totals, so it costs O(new bytes)
+     * instead of O(file size). A file that shrank is assumed to be truncated and is aggregated from the start again.
+     */
+    public static final class Follower implements AutoCloseable {
+        private final Bla2 bla2;
+        private final Path file;
+        private final int numThreads;
+        private final ExecutorService executor;
+
+        private StationTable state = new StationTable();
+        // start of the first line not aggregated yet, all lines before it are in state
+        private long offset;
+
+        public Follower(Path file, int numThreads) {
+            this(new Bla2(), file, numThreads);
+        }
+
+        public Follower(Bla2 bla2, Path file, int numThreads) {
+            this.bla2 = bla2;
+            this.file = file;
+            this.numThreads = numThreads;
+            this.executor = Executors.newFixedThreadPool(numThreads, WORKER_THREADS.factory());
+        }
+
+        /**
+         * Aggregates the complete lines appended since the last call; a trailing partial line is left for the next.
+         *
+         * @return the # of bytes aggregated, 0 if no complete line was appended
+         */
+        public synchronized long refresh() throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < offset) {
+                    state = new StationTable();
+                    offset = 0;
+                }
+
+                long end = lastLineEnd(channel, offset, size);
+                if (end == offset) {
+                    return 0;
+                }
+                state.merge(bla2.processRange(file, channel, offset, end, numThreads, executor));
+
+                long consumed = end - offset;
+                offset = end;
+                return consumed;
+            }
+        }
+
+        /**
+         * Calls {@link #refresh()} every {@code interval} and hands the result to {@code listener} whenever it
+         * changed, until the thread is interrupted.
+         */
+        public void follow(Duration interval, Consumer<ResultFormatter> listener) throws IOException, InterruptedException {
+            while (true) {
+                if (refresh() > 0) {
+                    listener.accept(result());
+                }
+                Thread.sleep(interval);
+            }
+        }
+
+        public synchronized ResultFormatter result() {
+            return format(state);
+        }
+
+        /**
+         * @return the file offset up to which lines have been aggregated
+         */
+        public synchronized long offset() {
+            return offset;
+        }
+
+        @Override
+        public void close() {
+            executor.close();
+        }
+
+        /**
+         * @return the offset after the last {@code '\n'} in {@code [from, size)}, {@code from} if there is none
+         */
+        private static long lastLineEnd(FileChannel channel, long from, long size) throws IOException {
+            ByteBuffer searchBuffer = ByteBuffer.allocate(8192);
+            long blockEnd = size;
+            while (blockEnd > from) {
+                long blockStart = Math.max(from, blockEnd - searchBuffer.capacity());
+                searchBuffer.clear().limit((int) (blockEnd - blockStart));
+                while (searchBuffer.hasRemaining()) {
+                    if (channel.read(searchBuffer, blockStart + searchBuffer.position()) == -1) {
+                        // the file was truncated while searching, look again on the next refresh
+                        return from;
+                    }
+                }
+                for (int i = searchBuffer.limit() - 1; i >= 0; i--) {
+                    if (searchBuffer.get(i) == NEWLINE) {
+                        return blockStart + i + 1;
+                    }
+                }
+                blockEnd = blockStart;
+            }
+            return from;
+        }
+    }
+
+    private static void publish(AtomicReference<StationTable> handoff, StationTable table) {
+        while (true) {
+            StationTable other = handoff.getAndSet(null);
+            if (other == null) {
+                if (handoff.compareAndSet(null, table)) {
+                    return;
+                }
+            } else {
+                table.merge(other);
+            }
+        }
     }
 
-    private List<FileSection> splitInSections(int numThreads, long fileSize, long chunkSize, FileChannel channel) throws IOException {
+    static ResultFormatter format(StationTable table) {
+        ResultFormatter result = new ResultFormatter(table.size);
+        for (int slot = 0; slot < table.keys.length; slot++) {
+            byte[] key = table.keys[slot];
+            if (key != null) {
+                result.add(key, 0, key.length, table.mins[slot], table.maxs[slot], table.sums[slot], table.counts[slot]);
+            }
+        }
+        return result;
+    }
+
+    private List<FileSection> splitInSections(int numThreads, long rangeStart, long rangeEnd, long chunkSize, FileChannel channel) throws IOException {
         List<FileSection> sections = new ArrayList<>();
-        long currentPos = 0;
+        long currentPos = rangeStart;
 
         for (int i = 0; i < numThreads; i++) {
             long startPos = currentPos;
-            long endPos = (i == numThreads - 1) ? fileSize : currentPos + chunkSize;
+            long endPos = (i == numThreads - 1) ? rangeEnd : currentPos + chunkSize;
 
             // Adjust end position to line boundary
             if (i < numThreads - 1) {
-                endPos = findNextLineStart(channel, endPos, fileSize);
+                endPos = findNextLineStart(channel, endPos, rangeEnd);
             }
 
             sections.add(new FileSection(startPos, endPos, i));
@@ -115,7 +741,22 @@ public class Bla2 {
         return fileSize;
     }
 
-    private void processLargeSection(FileChannel channel, Path file, FileSection section) throws IOException {
+    /**
+     * @param segmentStart file offset of the first byte of {@code fileSegment}
+     */
+    private void processSection(FileChannel channel, MemorySegment fileSegment, long segmentStart, PositionalReader.Source source,
+                                FileSection section, StationTable table) throws IOException {
+        if (fileSegment != null) {
+            processChunk(fileSegment.asSlice(section.startPos - segmentStart, section.endPos - section.startPos), table, advice);
+        } else if (source != null) {
+            // the blocks are pooled buffers, not mappings, the madvise hints do not apply
+            source.read(section.startPos, section.endPos, lines -> processChunk(lines, table, MemoryAdvice.NONE));
+        } else {
+            processLargeSection(channel, section, table);
+        }
+    }
+
+    private void processLargeSection(FileChannel channel, FileSection section, StationTable table) throws IOException {
         long remainingBytes = section.endPos - section.startPos;
         long currentPos = section.startPos;
   
@@ -136,7 +777,9 @@ public class Bla2 {
             );
 
             // Process this chunk
-            processChunk(buffer);
+            MemorySegment segment = MemorySegment.ofBuffer(buffer);
+            advice.onMapping(segment.address(), mappingSize);
+            processChunk(segment, table, advice);
 
             currentPos += mappingSize;
             remainingBytes -= mappingSize;
@@ -165,52 +808,158 @@ public class Bla2 {
 
 
 
-    // h e l l o ;
-    // 0 1 2 3 4 5 6
-    private Map<String, List<Double>> processChunk(MappedByteBuffer buffer) {
-        int mark = 0;
-        buffer.mark();
+    // h e l l o ; 1 2 . 3 \n
+    // 0 1 2 3 4 5 6 7 8 9 10
+    private static void processChunk(MemorySegment segment, StationTable table, MemoryAdvice advice) {
+        long limit = segment.byteSize();
+        DelimiterScanner scanner = new DelimiterScanner(segment, 0, limit);
+        advice.onRange(segment.address(), limit);
 
-        Map<String, List<Double>> measurements = new HashMap<>();
-        String currentCity = null;
+        long released = segment.address();
+        int lines;
+        while ((lines = scanner.next()) > 0) {
+            for (int i = 0; i < lines; i++) {
+                processLine(segment, scanner.lineStarts[i], scanner.semicolons[i], scanner.lineEnds[i], table);
+            }
+            released = advice.releaseBehind(released, segment.address() + scanner.remainder());
+        }
 
-        while (buffer.hasRemaining()) {
-            byte b = buffer.get();
+        // the last line of the file may not end with a newline
+        long lineStart = scanner.remainder();
+        if (lineStart < limit) {
+            long semicolon = lineStart;
+            while (semicolon < limit && segment.get(JAVA_BYTE, semicolon) != SEMICOLON) {
+                semicolon++;
+            }
+            if (semicolon < limit) {
+                processLine(segment, lineStart, semicolon, limit, table);
+            }
+        }
+        advice.releaseChunk(released, segment.address() + limit);
+    }
 
-            if (b == SEMICOLON) {
-                int cityLength = buffer.position() - mark - 1;
-                byte[] cityAsBytes = new byte[cityLength];
-                buffer.reset();
-                buffer.get(cityAsBytes, 0, cityLength);
-                buffer.get(); // skip over the semicolon again
-                buffer.mark();
-                mark = buffer.position();
+    private static void processLine(MemorySegment segment, long lineStart, long semicolon, long lineEnd, StationTable table) {
+        // blank lines and lines without a ';' get the semicolon of an earlier line from the scanner, skip them
+        if (semicolon < lineStart) {
+            return;
+        }
 
-                currentCity = new String(cityAsBytes, StandardCharsets.UTF_8); // expensive
-               // measurements.putIfAbsent(currentCity, new LinkedList<>());
-                //  System.out.println("new String(cityAsBytes, StandardCharsets.UTF_8) = " + new String(cityAsBytes, StandardCharsets.UTF_8));
-            }  else if (b == NEWLINE || !buffer.hasRemaining()) {
-                int temperatureLength = buffer.position() - mark - 1;
-                byte[] temperatureAsBytes = new byte[temperatureLength];
-                buffer.reset();
-                buffer.get(temperatureAsBytes, 0, temperatureLength);
-                buffer.get(); // skip over semicolon again
-                buffer.mark();
-                mark = buffer.position();
+        int hash = 0;
+        for (long i = lineStart; i < semicolon; i++) {
+            hash = 31 * hash + segment.get(JAVA_BYTE, i);
+        }
 
-                double d = Double.parseDouble(new String(temperatureAsBytes, StandardCharsets.UTF_8)); // expenive
-                //measurements.get(currentCity).add(d);
-                //measurements.add(new Measurement(currentCity, d));
-                //double value = ByteBuffer.wrap(temperatureAsBytes).getDouble();
-                // System.out.println("new String(keyArray, StandardCharsets.UTF_8) = " + new String(temperatureAsBytes, StandardCharsets.UTF_8));
-            }
+        // the temperature is always formatted as -?\d?\d.\d, parse it as tenths of a degree
+        long pos = semicolon + 1;
+        boolean negative = segment.get(JAVA_BYTE, pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        int temperature = segment.get(JAVA_BYTE, pos++) - '0';
+        byte b = segment.get(JAVA_BYTE, pos++);
+        if (b != '.') {
+            temperature = temperature * 10 + (b - '0');
+            pos++; // skip over the dot
         }
-        return measurements;
+        temperature = temperature * 10 + (segment.get(JAVA_BYTE, pos) - '0');
+        if (negative) {
+            temperature = -temperature;
+        }
+
+        table.add(segment, lineStart, (int) (semicolon - lineStart), hash, temperature);
     }
 
+    /**
+     * Open addressing, linear probing table keyed by the raw UTF-8 bytes of the station name. The name is only
+     * copied out of the buffer the first time a station shows up, every other row is allocation free.
+     */
+    static final class StationTable {
+        private static final int CAPACITY = 1 << 16;
+        private static final int MASK = CAPACITY - 1;
+        // 1brc allows 10k distinct stations, keep the load factor well below 1/2
+        private static final int MAX_SIZE = CAPACITY / 2;
+
+        final byte[][] keys = new byte[CAPACITY][];
+        final int[] hashes = new int[CAPACITY];
+        final int[] mins = new int[CAPACITY];
+        final int[] maxs = new int[CAPACITY];
+        final long[] sums = new long[CAPACITY];
+        final long[] counts = new long[CAPACITY];
+        int size;
+
+        void add(MemorySegment segment, long keyStart, int keyLength, int hash, int temperature) {
+            int slot = (hash ^ (hash >>> 16)) & MASK;
+            while (true) {
+                byte[] key = keys[slot];
+                if (key == null) {
+                    key = new byte[keyLength];
+                    MemorySegment.copy(segment, JAVA_BYTE, keyStart, key, 0, keyLength);
+                    insert(slot, key, hash, temperature, temperature, temperature, 1);
+                    return;
+                }
+                if (hashes[slot] == hash && keyEquals(key, segment, keyStart, keyLength)) {
+                    mins[slot] = Math.min(mins[slot], temperature);
+                    maxs[slot] = Math.max(maxs[slot], temperature);
+                    sums[slot] += temperature;
+                    counts[slot]++;
+                    return;
+                }
+                slot = (slot + 1) & MASK;
+            }
+        }
 
-    record FileSection(long startPos, long endPos, int threadId) {
+        void merge(StationTable other) {
+            for (int otherSlot = 0; otherSlot < other.keys.length; otherSlot++) {
+                byte[] otherKey = other.keys[otherSlot];
+                if (otherKey == null) {
+                    continue;
+                }
+                int hash = other.hashes[otherSlot];
+                int slot = (hash ^ (hash >>> 16)) & MASK;
+                while (true) {
+                    byte[] key = keys[slot];
+                    if (key == null) {
+                        insert(slot, otherKey, hash, other.mins[otherSlot], other.maxs[otherSlot], other.sums[otherSlot], other.counts[otherSlot]);
+                        break;
+                    }
+                    if (hashes[slot] == hash && Arrays.equals(key, otherKey)) {
+                        mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+                        maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+                        sums[slot] += other.sums[otherSlot];
+                        counts[slot] += other.counts[otherSlot];
+                        break;
+                    }
+                    slot = (slot + 1) & MASK;
+                }
+            }
+        }
+
+        private void insert(int slot, byte[] key, int hash, int min, int max, long sum, long count) {
+            if (size == MAX_SIZE) {
+                throw new IllegalStateException("More than " + MAX_SIZE + " distinct stations");
+            }
+            keys[slot] = key;
+            hashes[slot] = hash;
+            mins[slot] = min;
+            maxs[slot] = max;
+            sums[slot] = sum;
+            counts[slot] = count;
+            size++;
+        }
+
+        private static boolean keyEquals(byte[] key, MemorySegment segment, long keyStart, int keyLength) {
+            if (key.length != keyLength) {
+                return false;
+            }
+            for (int i = 0; i < keyLength; i++) {
+                if (key[i] != segment.get(JAVA_BYTE, keyStart + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
-    record Measurement(String city, double measurement) {}
+    record FileSection(long startPos, long endPos, int threadId) {
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * In-process entry point to the engines, for aggregating many files in one JVM.
+ * <p>
+ * An aggregator owns its worker threads and, depending on the engine, its hash tables. Both are kept between calls
+ * to {@link #aggregate(Path)} and released by {@link #close()}. Calls on one aggregator must not overlap.
+ */
+public interface Aggregator extends AutoCloseable {
+
+    /**
+     * Aggregates one file of {@code station;temperature} lines.
+     *
+     * @return the stations of the file, independent of the aggregator's state
+     */
+    ResultFormatter aggregate(Path file) throws IOException;
+
+    /**
+     * Aggregates many files. Engines that can share their workers between the files override this, by default the
+     * files are aggregated one after the other.
+     *
+     * @param files    the files, see {@link #inputFiles(List)} for expanding directories
+     * @param combined whether to also aggregate all files together
+     */
+    default BatchResult aggregateAll(List<Path> files, boolean combined) throws IOException {
+        List<ResultFormatter> formatted = new ArrayList<>(files.size());
+        Map<Path, ResultFormatter> results = new LinkedHashMap<>();
+        for (Path file : files) {
+            ResultFormatter result = aggregate(file);
+            formatted.add(result);
+            results.put(file, result);
+        }
+        return new BatchResult(results, combined ? ResultFormatter.combine(formatted) : null);
+    }
+
+    @Override
+    void close();
+
+    /**
+     * Replaces every directory in {@code paths} by the regular files directly inside it, sorted by name.
+     */
+    static List<Path> inputFiles(List<Path> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> children = Files.list(path)) {
+                    children.filter(Files::isRegularFile).sorted().forEach(files::add);
+                }
+            }
+            else {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param engine  {@code bla}, {@code bla2} or {@code linl33}; {@code linl33} is only part of the jdk22 build and
+     *                {@code bla} and {@code bla2} only of the default one
+     * @param threads # of worker threads
+     */
+    static Aggregator create(String engine, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        String className = switch (engine) {
+            case "bla" -> "com.marco.marco.Bla$Engine";
+            case "bla2" -> "com.marco.marco.Bla2$Engine";
+            case "linl33" -> "dev.morling.onebrc.CalculateAverage_linl33$Engine";
+            default -> throw new IllegalArgumentException("Unknown engine: " + engine);
+        };
+        try {
+            // the engines live in different source roots, they are looked up by name
+            return (Aggregator) Class.forName(className).getConstructor(int.class).newInstance(threads);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Engine " + engine + " is not part of this build", e);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create engine " + engine, e);
+        }
+    }
+}
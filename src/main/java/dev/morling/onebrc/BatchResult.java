@@ -0,0 +1,28 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Result of {@link Aggregator#aggregateAll(java.util.List, boolean)}.
+ *
+ * @param files    the result of every file, in the order the files were given
+ * @param combined the stations of all files aggregated together, {@code null} unless requested
+ */
+public record BatchResult(Map<Path, ResultFormatter> files, ResultFormatter combined) {
+}
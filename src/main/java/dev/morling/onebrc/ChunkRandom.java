@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ * Random streams for reproducible measurement files, selected with a trailing {@code --seed <n>} argument.
+ * <p>
+ * A generator splits its output into chunks of a fixed number of rows and draws every chunk from
+ * {@link #of(long, long)}. The stream of a chunk only depends on the master seed and the chunk index, not on which
+ * thread generates it or when, so a seed always yields the same file, byte for byte, for any number of threads.
+ */
+public final class ChunkRandom {
+
+    // the increment of SplitMix64, spreads consecutive chunk indexes over the whole seed space
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private ChunkRandom() {
+    }
+
+    /**
+     * @param seed  the master seed
+     * @param chunk the index of the chunk, negative indexes are free for anything generated besides the rows
+     */
+    public static RandomGenerator of(long seed, long chunk) {
+        return new SplittableRandom(mix(seed + (chunk + 1) * GOLDEN_GAMMA));
+    }
+
+    /**
+     * @return the value of a trailing {@code --seed <n>}, {@code null} without one
+     * @throws NumberFormatException if {@code <n>} is not a long
+     */
+    public static Long seed(String[] args) {
+        return hasSeed(args) ? Long.parseLong(args[args.length - 1]) : null;
+    }
+
+    /**
+     * @return {@code args} without a trailing {@code --seed <n>}
+     */
+    public static String[] withoutSeed(String[] args) {
+        return hasSeed(args) ? Arrays.copyOf(args, args.length - 2) : args;
+    }
+
+    private static boolean hasSeed(String[] args) {
+        return args.length >= 2 && args[args.length - 2].equals("--seed");
+    }
+
+    // the finalizer of SplitMix64, so that seeds differing in few bits give unrelated streams
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
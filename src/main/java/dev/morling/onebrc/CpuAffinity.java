@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Pins worker threads to CPUs with {@code sched_setaffinity(2)}, called through the FFM linker, spreading the workers
+ * over the NUMA nodes.
+ * <p>
+ * Worker {@code i} always gets the same CPU, taken from the nodes in turn: worker 0 from node 0, worker 1 from node 1
+ * and so on. Only the CPUs the process may run on are used. Pinning itself is what makes memory local: Linux places a
+ * page on the node of the thread that touches it first, so a pinned worker that allocates its own table and is the
+ * first to read its part of the input gets both on its node. Engines keep the part of the input and the table of a
+ * worker index the same between runs, so pages still in the page cache from an earlier run stay local as well.
+ * <p>
+ * The topology is read from {@code /sys/devices/system/node}, without it all CPUs are on node 0. Virtual threads are
+ * never pinned, that would pin their carrier thread.
+ */
+public final class CpuAffinity {
+    public static final CpuAffinity NONE = new CpuAffinity(new int[0], new int[0], 1);
+
+    // a cpu_set_t for up to 8192 CPUs, the kernel accepts any size that covers its CPUs
+    private static final long CPU_SET_SIZE = 1024;
+
+    // the CPU and node of every worker index, in the order they are handed out
+    private final int[] cpus;
+    private final int[] nodes;
+    private final int nodeCount;
+
+    private CpuAffinity(int[] cpus, int[] nodes, int nodeCount) {
+        this.cpus = cpus;
+        this.nodes = nodes;
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * @param pin whether to pin at all, {@link #NONE} otherwise
+     * @throws UnsupportedOperationException if pinning is requested on a system without {@code sched_setaffinity}
+     */
+    public static CpuAffinity create(boolean pin) {
+        if (!pin) {
+            return NONE;
+        }
+        if (Libc.SCHED_SETAFFINITY == null || Libc.SCHED_GETAFFINITY == null) {
+            throw new UnsupportedOperationException("Pinning threads needs sched_setaffinity, which is Linux only");
+        }
+
+        List<Integer> allowed = allowedCpus();
+        List<List<Integer>> cpusByNode = new ArrayList<>();
+        for (List<Integer> nodeCpus : nodeCpus()) {
+            List<Integer> cpus = new ArrayList<>(nodeCpus);
+            cpus.retainAll(allowed);
+            if (!cpus.isEmpty()) {
+                cpusByNode.add(cpus);
+            }
+            allowed.removeAll(nodeCpus);
+        }
+        // CPUs the kernel does not list under any node
+        if (!allowed.isEmpty()) {
+            cpusByNode.add(allowed);
+        }
+
+        int total = cpusByNode.stream().mapToInt(List::size).sum();
+        List<Integer> cpus = new ArrayList<>();
+        List<Integer> nodes = new ArrayList<>();
+        for (int i = 0; cpus.size() < total; i++) {
+            for (int node = 0; node < cpusByNode.size(); node++) {
+                if (i < cpusByNode.get(node).size()) {
+                    cpus.add(cpusByNode.get(node).get(i));
+                    nodes.add(node);
+                }
+            }
+        }
+        return new CpuAffinity(
+                cpus.stream().mapToInt(Integer::intValue).toArray(),
+                nodes.stream().mapToInt(Integer::intValue).toArray(),
+                Math.max(1, cpusByNode.size()));
+    }
+
+    public boolean isEnabled() {
+        return cpus.length > 0;
+    }
+
+    /**
+     * @return # of NUMA nodes workers are spread over, {@code 1} without pinning
+     */
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the node of the CPU of {@code worker}, {@code 0} without pinning
+     */
+    public int node(int worker) {
+        return isEnabled() ? nodes[worker % nodes.length] : 0;
+    }
+
+    /**
+     * Pins the calling thread to the CPU of {@code worker}. Does nothing without pinning or on a virtual thread.
+     *
+     * @return the node of that CPU, see {@link #node(int)}
+     */
+    public int pin(int worker) {
+        if (!isEnabled() || Thread.currentThread().isVirtual()) {
+            return node(worker);
+        }
+        int cpu = cpus[worker % cpus.length];
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment set = arena.allocate(CPU_SET_SIZE, Long.BYTES);
+            set.set(ValueLayout.JAVA_BYTE, cpu / Byte.SIZE, (byte) (1 << (cpu % Byte.SIZE)));
+            // pid 0 is the calling thread
+            if ((int) Libc.SCHED_SETAFFINITY.invokeExact(0, CPU_SET_SIZE, set) != 0) {
+                throw new IllegalStateException("Cannot pin thread " + Thread.currentThread().getName() + " to CPU " + cpu);
+            }
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        return node(worker);
+    }
+
+    private static List<Integer> allowedCpus() {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment set = arena.allocate(CPU_SET_SIZE, Long.BYTES);
+            if ((int) Libc.SCHED_GETAFFINITY.invokeExact(0, CPU_SET_SIZE, set) != 0) {
+                throw new IllegalStateException("Cannot read the CPUs this process may run on");
+            }
+            List<Integer> cpus = new ArrayList<>();
+            for (int cpu = 0; cpu < CPU_SET_SIZE * Byte.SIZE; cpu++) {
+                if ((set.get(ValueLayout.JAVA_BYTE, cpu / Byte.SIZE) & (1 << (cpu % Byte.SIZE))) != 0) {
+                    cpus.add(cpu);
+                }
+            }
+            return cpus;
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the CPUs of every node, by node number
+     */
+    private static List<List<Integer>> nodeCpus() {
+        Path nodeDirectory = Path.of("/sys/devices/system/node");
+        List<List<Integer>> nodes = new ArrayList<>();
+        try (Stream<Path> children = Files.list(nodeDirectory)) {
+            List<Path> nodePaths = children
+                    .filter(path -> path.getFileName().toString().matches("node\\d+"))
+                    .sorted((a, b) -> Integer.compare(nodeNumber(a), nodeNumber(b)))
+                    .toList();
+            for (Path node : nodePaths) {
+                nodes.add(parseCpuList(Files.readString(node.resolve("cpulist")).strip()));
+            }
+        }
+        catch (IOException e) {
+            // no NUMA information, all CPUs end up on node 0
+            return List.of();
+        }
+        return nodes;
+    }
+
+    private static int nodeNumber(Path node) {
+        return Integer.parseInt(node.getFileName().toString().substring("node".length()));
+    }
+
+    /**
+     * Parses the kernel's list format, e.g. {@code 0-3,8-11}.
+     */
+    private static List<Integer> parseCpuList(String list) {
+        List<Integer> cpus = new ArrayList<>();
+        if (list.isEmpty()) {
+            return cpus;
+        }
+        for (String range : list.split(",")) {
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+            for (int cpu = first; cpu <= last; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+        return cpus;
+    }
+
+    /**
+     * Only initialized once pinning is requested, so runs without it never touch the native linker.
+     */
+    private static final class Libc {
+        private static final Linker LINKER = Linker.nativeLinker();
+        // int sched_setaffinity(pid_t pid, size_t cpusetsize, const cpu_set_t *mask), the same for sched_getaffinity
+        private static final FunctionDescriptor AFFINITY = FunctionDescriptor.of(
+                ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS);
+        private static final MethodHandle SCHED_SETAFFINITY = LINKER.defaultLookup().find("sched_setaffinity")
+                .map(function -> LINKER.downcallHandle(function, AFFINITY))
+                .orElse(null);
+        private static final MethodHandle SCHED_GETAFFINITY = LINKER.defaultLookup().find("sched_getaffinity")
+                .map(function -> LINKER.downcallHandle(function, AFFINITY))
+                .orElse(null);
+    }
+}
@@ -20,14 +20,19 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
+/**
+ * With {@code --seed <n>}, rows are drawn in the chunks of {@link CreateMeasurementsFast} from the same
+ * {@link ChunkRandom} streams, so both write the same file for a given seed.
+ */
 public class CreateMeasurements {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
 
     private record WeatherStation(String id, double meanTemperature) {
-        double measurement() {
-            double m = ThreadLocalRandom.current().nextGaussian(meanTemperature, 10);
+        double measurement(RandomGenerator random) {
+            double m = random.nextGaussian(meanTemperature, 10);
             return Math.round(m * 10.0) / 10.0;
         }
     }
@@ -35,18 +40,21 @@ public class CreateMeasurements {
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        String[] options = ChunkRandom.withoutSeed(args);
+        if (options.length != 1) {
+            System.out.println("Usage: create_measurements.sh <number of records to create> [--seed <n>]");
             System.exit(1);
         }
 
         int size = 0;
+        Long seed = null;
         try {
-            size = Integer.parseInt(args[0]);
+            size = Integer.parseInt(options[0]);
+            seed = ChunkRandom.seed(args);
         }
         catch (NumberFormatException e) {
-            System.out.println("Invalid value for <number of records to create>");
-            System.out.println("Usage: CreateMeasurements <number of records to create>");
+            System.out.println("Invalid value for <number of records to create> or <n>");
+            System.out.println("Usage: CreateMeasurements <number of records to create> [--seed <n>]");
             System.exit(1);
         }
 
@@ -490,13 +498,17 @@ public class CreateMeasurements {
                 new WeatherStation("Zürich", 9.3));
 
         try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE)) {
+            RandomGenerator random = ThreadLocalRandom.current();
             for (int i = 0; i < size; i++) {
                 if (i > 0 && i % 50_000_000 == 0) {
                     System.out.printf("Wrote %,d measurements in %s ms%n", i, System.currentTimeMillis() - start);
                 }
-                WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
+                if (seed != null && i % CreateMeasurementsFast.CHUNK_ROWS == 0) {
+                    random = ChunkRandom.of(seed, i / CreateMeasurementsFast.CHUNK_ROWS);
+                }
+                WeatherStation station = stations.get(random.nextInt(stations.size()));
                 bw.write(station.id());
-                bw.write(";" + station.measurement());
+                bw.write(";" + station.measurement(random));
                 bw.write('\n');
             }
         }
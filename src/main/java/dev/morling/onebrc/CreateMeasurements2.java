@@ -15,39 +15,47 @@
  */
 package dev.morling.onebrc;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
-import org.rschwietzke.CheaperCharBuffer;
 import org.rschwietzke.FastRandom;
 
 /**
  * Faster version with some data faking instead of a real Gaussian distribution
  * Good enough for our purppose I guess.
+ *
+ * Everything is written as bytes: station names are encoded once, temperatures come from
+ * {@link TemperatureEncodings}, and rows go into one direct buffer that is written to a
+ * {@link FileChannel} whenever it is full, so a single thread is not held up by char encoding.
+ *
+ * With {@code --seed <n>}, the randoms of every stride and of the stations are seeded from {@link ChunkRandom}
+ * streams, stride {@code i} from chunk {@code i}, so a seed always gives the same file.
  */
 public class CreateMeasurements2 {
 
-    private static final String FILE = "./measurements2.txt";
+    private static final Path FILE = Path.of("./measurements2.txt");
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
 
     static class WeatherStation {
-        final static char[] NUMBERS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' };
-
         final String id;
         final int meanTemperature;
 
-        final char[] firstPart;
-        final FastRandom r = new FastRandom(ThreadLocalRandom.current().nextLong());
+        final byte[] firstPart;
+        FastRandom r = new FastRandom(ThreadLocalRandom.current().nextLong());
 
         WeatherStation(String id, double meanTemperature) {
             this.id = id;
             this.meanTemperature = (int) meanTemperature;
-            // make it directly copyable
-            this.firstPart = (id + ";").toCharArray();
+            // make it directly copyable, encoded once
+            this.firstPart = (id + ";").getBytes(StandardCharsets.UTF_8);
         }
 
         /**
@@ -55,38 +63,44 @@ public class CreateMeasurements2 {
          * We also no longer use double and gaussian, because for our
          * purpose, the fake numbers here will do it. Less
          *
-         * @param buffer the buffer to append to
+         * @param buffer the buffer to append to, with room for {@link #maxLength()} bytes
          */
-        void measurement(final CheaperCharBuffer buffer) {
+        void measurement(final ByteBuffer buffer) {
             // fake -10.9 to +10.9 variance without double operations and rounding
             // gives us -10 to +10
             int m = meanTemperature + (r.nextInt(21) - 10);
-            // gives us a decimal digit 0 to 9 as char
-            char d = NUMBERS[r.nextInt(10)];
+            // gives us a decimal digit 0 to 9
+            int d = r.nextInt(10);
+
+            // "m.d", the digit extends m away from zero
+            buffer.put(firstPart)
+                    .put(TemperatureEncodings.encode(m < 0 ? m * 10 - d : m * 10 + d))
+                    .put((byte) '\n');
+        }
 
-            // just append, only one number has to be converted and we can do
-            // better... if we watn
-            buffer.append(firstPart, 0, firstPart.length)
-                    .append(String.valueOf(m)).append('.').append(d)
-                    .append('\n');
+        int maxLength() {
+            return firstPart.length + TemperatureEncodings.MAX_LENGTH + 1;
         }
     }
 
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        String[] options = ChunkRandom.withoutSeed(args);
+        if (options.length != 1) {
+            System.out.println("Usage: create_measurements.sh <number of records to create> [--seed <n>]");
             System.exit(1);
         }
 
         int size = 0;
+        Long seed = null;
         try {
-            size = Integer.parseInt(args[0]);
+            size = Integer.parseInt(options[0]);
+            seed = ChunkRandom.seed(args);
         }
         catch (NumberFormatException e) {
-            System.out.println("Invalid value for <number of records to create>");
-            System.out.println("Usage: CreateMeasurements <number of records to create>");
+            System.out.println("Invalid value for <number of records to create> or <n>");
+            System.out.println("Usage: CreateMeasurements <number of records to create> [--seed <n>]");
             System.exit(1);
         }
 
@@ -529,46 +543,65 @@ public class CreateMeasurements2 {
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
 
-        File file = new File(FILE);
+        if (seed != null) {
+            // the rows draw from chunks 0, 1, ..., the stations from chunk -1
+            RandomGenerator stationSeeds = ChunkRandom.of(seed, -1);
+            for (WeatherStation station : stations) {
+                station.r = new FastRandom(stationSeeds.nextLong());
+            }
+        }
 
         // break the loop and unroll it manually
         int strideSize = 50_000_000;
         int outer = size / strideSize;
         int remainder = size - (outer * strideSize);
 
-        try (final BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+        // reused for all rows, written whenever full
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        try (final FileChannel channel = FileChannel.open(FILE, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
             for (int i = 0; i < outer; i++) {
-                produce(bw, stations, strideSize);
+                produce(channel, buffer, stations, strideSize, seeds(seed, i));
 
                 // we avoid a modulo if here and use the stride size to print and update
                 System.out.println("Wrote %,d measurements in %s ms".formatted((i + 1) * strideSize, System.currentTimeMillis() - start));
             }
             // there might be a rest
-            produce(bw, stations, remainder);
+            produce(channel, buffer, stations, remainder, seeds(seed, outer));
 
             // write fully before taking measurements
-            bw.flush();
+            flush(channel, buffer);
             System.out.println("Created file with %,d measurements in %s ms".formatted(size, System.currentTimeMillis() - start));
         }
     }
 
-    private static void produce(BufferedWriter bw, List<WeatherStation> stations, int count) throws IOException {
+    /**
+     * @return where the randoms of stride {@code stride} get their seeds from
+     */
+    private static RandomGenerator seeds(Long seed, int stride) {
+        return seed != null ? ChunkRandom.of(seed, stride) : ThreadLocalRandom.current();
+    }
+
+    private static void produce(FileChannel channel, ByteBuffer buffer, List<WeatherStation> stations, int count, RandomGenerator seeds)
+            throws IOException {
         final int stationCount = stations.size();
         final int rest = count % 8;
+        // room for the 8 rows of one iteration
+        final int reserve = 8 * stations.stream().mapToInt(WeatherStation::maxLength).max().orElse(0);
 
         // use a fast ranodm impl without atomics to be able to utilize the cpu better
         // and avoid sideeffects, FastRandom is very fake random and does not have a state
-        final FastRandom r1 = new FastRandom(ThreadLocalRandom.current().nextLong());
-        final FastRandom r2 = new FastRandom(ThreadLocalRandom.current().nextLong());
-        final FastRandom r3 = new FastRandom(ThreadLocalRandom.current().nextLong());
-        final FastRandom r4 = new FastRandom(ThreadLocalRandom.current().nextLong());
-
-        // write to a fix buffer first, don't create strings ever
-        // reuse buffer
-        final CheaperCharBuffer sb = new CheaperCharBuffer(200);
+        final FastRandom r1 = new FastRandom(seeds.nextLong());
+        final FastRandom r2 = new FastRandom(seeds.nextLong());
+        final FastRandom r3 = new FastRandom(seeds.nextLong());
+        final FastRandom r4 = new FastRandom(seeds.nextLong());
 
-        // manual loop unroll for less jumps
-        for (int i = 0; i < count; i = i + 8) {
+        // manual loop unroll for less jumps, the rest is done below
+        for (int i = 0; i < count - rest; i = i + 8) {
+            // write the buffer directly once full, no intermediate copy
+            if (buffer.remaining() < reserve) {
+                flush(channel, buffer);
+            }
             {
                 // try to fill teh cpu pipeline as much as possible with
                 // independent operations
@@ -583,10 +616,10 @@ public class CreateMeasurements2 {
                 var w3 = stations.get(s3);
                 var w4 = stations.get(s4);
                 // write our data to our buffer
-                w1.measurement(sb);
-                w2.measurement(sb);
-                w3.measurement(sb);
-                w4.measurement(sb);
+                w1.measurement(buffer);
+                w2.measurement(buffer);
+                w3.measurement(buffer);
+                w4.measurement(buffer);
             }
             {
                 int s1 = r1.nextInt(stationCount);
@@ -597,27 +630,32 @@ public class CreateMeasurements2 {
                 var w2 = stations.get(s2);
                 var w3 = stations.get(s3);
                 var w4 = stations.get(s4);
-                w1.measurement(sb);
-                w2.measurement(sb);
-                w3.measurement(sb);
-                w4.measurement(sb);
+                w1.measurement(buffer);
+                w2.measurement(buffer);
+                w3.measurement(buffer);
+                w4.measurement(buffer);
             }
-            // write the buffer directly, no intermediate string copy
-            bw.write(sb.data_, 0, sb.length_);
-
-            // reuse buffer, reset only, no cleaning
-            sb.clear();
         }
 
         // there might be a rest to write
+        if (buffer.remaining() < reserve) {
+            flush(channel, buffer);
+        }
         for (int i = 0; i < rest; i++) {
-            sb.clear();
-
             int s = r1.nextInt(stationCount);
             var w = stations.get(s);
-            w.measurement(sb);
+            w.measurement(buffer);
+        }
+    }
 
-            bw.write(sb.data_, 0, sb.length_);
+    /**
+     * Writes out and clears {@code buffer}, it is reused as is.
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
+        buffer.clear();
     }
 }
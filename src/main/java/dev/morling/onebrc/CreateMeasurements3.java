@@ -25,31 +25,42 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
+/**
+ * With {@code --seed <n>}, the station names are drawn from {@link ChunkRandom} chunk -1 and the rows in the chunks of
+ * {@link CreateMeasurementsFast}, so a seed always gives the same file.
+ */
 public class CreateMeasurements3 {
 
     public static final int MAX_NAME_LEN = 100;
     public static final int KEYSET_SIZE = 10_000;
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements3.sh <number of records to create>");
+        final var options = ChunkRandom.withoutSeed(args);
+        if (options.length != 1) {
+            System.out.println("Usage: create_measurements3.sh <number of records to create> [--seed <n>]");
             System.exit(1);
         }
         int size = 0;
+        Long seed = null;
         try {
-            size = Integer.parseInt(args[0]);
+            size = Integer.parseInt(options[0]);
+            seed = ChunkRandom.seed(args);
         }
         catch (NumberFormatException e) {
-            System.out.println("Invalid value for <number of records to create>");
-            System.out.println("Usage: create_measurements3.sh <number of records to create>");
+            System.out.println("Invalid value for <number of records to create> or <n>");
+            System.out.println("Usage: create_measurements3.sh <number of records to create> [--seed <n>]");
             System.exit(1);
         }
-        final var weatherStations = generateWeatherStations();
+        final var weatherStations = generateWeatherStations(seed != null ? ChunkRandom.of(seed, -1) : ThreadLocalRandom.current());
         final var start = System.currentTimeMillis();
-        final var rnd = ThreadLocalRandom.current();
+        RandomGenerator rnd = ThreadLocalRandom.current();
         try (var out = new BufferedWriter(new FileWriter("measurements3.txt"))) {
             for (int i = 1; i <= size; i++) {
+                if (seed != null && (i - 1) % CreateMeasurementsFast.CHUNK_ROWS == 0) {
+                    rnd = ChunkRandom.of(seed, (i - 1) / CreateMeasurementsFast.CHUNK_ROWS);
+                }
                 var station = weatherStations.get(rnd.nextInt(KEYSET_SIZE));
                 double temp = rnd.nextGaussian(station.avgTemp, 7.0);
                 out.write(station.name);
@@ -66,7 +77,7 @@ public class CreateMeasurements3 {
     record WeatherStation(String name, float avgTemp) {
     }
 
-    private static ArrayList<WeatherStation> generateWeatherStations() throws Exception {
+    private static ArrayList<WeatherStation> generateWeatherStations(RandomGenerator rnd) throws Exception {
         // Use a public list of city names and concatenate them all into a long string,
         // which we'll use as a "source of city name randomness"
         var bigName = new StringBuilder(1 << 20);
@@ -88,7 +99,6 @@ public class CreateMeasurements3 {
             skipComments(rows);
             final var nameSource = new StringReader(bigName.toString());
             final var buf = new char[MAX_NAME_LEN];
-            final var rnd = ThreadLocalRandom.current();
             final double yOffset = 4;
             final double factor = 2500;
             final double xOffset = 0.372;
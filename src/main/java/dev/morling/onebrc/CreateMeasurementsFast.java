@@ -15,50 +15,100 @@
  */
 package dev.morling.onebrc;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.random.RandomGenerator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Creates the measurements file in parallel. Rows are generated in chunks of {@link #CHUNK_ROWS}, every worker encodes
+ * its chunk as UTF-8 into a buffer it reuses and writes it with a positional write. The file position of a chunk is
+ * known as soon as all chunks before it are encoded, so writes overlap with encoding and chunks end up in order.
+ * <p>
+ * There is one worker and one buffer per core and nothing else grows with the file, so memory stays at
+ * {@code cores * CHUNK_ROWS * longest line} bytes, about 13 MB per core, for any number of rows. Instead of a number of
+ * rows, a file size can be given as {@code --size 50GB}; the file then ends with the line that reaches that size.
+ * <p>
+ * With {@code --seed <n>}, chunk {@code i} draws from {@link ChunkRandom#of(long, long) ChunkRandom.of(n, i)}, so the
+ * file is the same for a given seed no matter how many workers there are.
+ */
 public class CreateMeasurementsFast {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
     static final Executor EXECUTOR_SERVICE = Executors.newWorkStealingPool();
 
+    // rows per chunk, the unit a worker claims, encodes and writes at once
+    static final int CHUNK_ROWS = 1 << 18;
+    // "-", the digits of a long, "." and the tenth
+    private static final int MAX_MEASUREMENT_LENGTH = 22;
+    // binary units, like -Xmx
+    private static final Pattern SIZE = Pattern.compile("(\\d+)\\s*([KMGT]?)B?", Pattern.CASE_INSENSITIVE);
+
     private record WeatherStation(String id, double meanTemperature) {
-        double measurement() {
-            double m = ThreadLocalRandom.current().nextGaussian(meanTemperature, 10);
-            return Math.round(m * 10.0) / 10.0;
+        long measurementInTenths(RandomGenerator random) {
+            double m = random.nextGaussian(meanTemperature, 10);
+            return Math.round(m * 10.0);
         }
     }
 
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        String[] options = ChunkRandom.withoutSeed(args);
+        boolean bySize = options.length == 2 && options[0].equals("--size");
+        if (options.length != 1 && !bySize) {
+            System.out.println("Usage: CreateMeasurementsFast <number of records to create> | --size <file size, e.g. 50GB> [--seed <n>]");
             System.exit(1);
         }
 
-        int size = 0;
+        long size = Long.MAX_VALUE;
+        long targetBytes = Long.MAX_VALUE;
+        Long seed = null;
         try {
-            size = Integer.parseInt(args[0]);
+            if (bySize) {
+                targetBytes = parseSize(options[1]);
+            }
+            else {
+                size = Long.parseLong(options[0]);
+            }
+            seed = ChunkRandom.seed(args);
         }
         catch (NumberFormatException e) {
-            System.out.println("Invalid value for <number of records to create>");
-            System.out.println("Usage: CreateMeasurements <number of records to create>");
+            System.out.println("Invalid value: " + e.getMessage());
+            System.out.println("Usage: CreateMeasurementsFast <number of records to create> | --size <file size, e.g. 50GB> [--seed <n>]");
             System.exit(1);
         }
 
+        long rowsWritten = create(MEASUREMENT_FILE, size, targetBytes, seed, Runtime.getRuntime().availableProcessors());
+        System.out.printf("Created file with %,d measurements in %s ms%n", rowsWritten, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Replaces {@code file} by {@code size} rows, or by the rows up to the one reaching {@code targetBytes}.
+     *
+     * @param seed    the master seed, {@code null} for a different file every time
+     * @param workers # of chunks encoded at once, at most
+     * @return # of rows written
+     */
+    static long create(Path file, long size, long targetBytes, Long seed, int workers) throws IOException {
         try {
-            Files.deleteIfExists(MEASUREMENT_FILE);
-            Files.createFile(MEASUREMENT_FILE);
+            Files.deleteIfExists(file);
+            Files.createFile(file);
         }
         catch (Exception e) {
             // ignore
@@ -503,35 +553,170 @@ public class CreateMeasurementsFast {
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
 
-        int chunkSize = (size / 10_000_000) == 0 ? size : 10_000_000;
-        int numberOfFutures = size / chunkSize;
-        if (numberOfFutures == 0) {
-            numberOfFutures = 1;
+        // "<id>;" of every station, encoded once
+        byte[][] prefixes = new byte[stations.size()][];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = (stations.get(i).id() + ";").getBytes(StandardCharsets.UTF_8);
         }
-        CompletableFuture<?>[] futures = new CompletableFuture[numberOfFutures];
+        int maxLineLength = Arrays.stream(prefixes).mapToInt(prefix -> prefix.length).max().orElse(0) + MAX_MEASUREMENT_LENGTH + 1;
 
-        for (int n = 0; n < numberOfFutures; n++) {
-            int finalN = n;
-            futures[n] = CompletableFuture.runAsync(() -> {
-                StringBuilder builder = new StringBuilder();
-                for (int i = finalN * chunkSize; i <= (finalN + 1) * chunkSize - 1; i++) {
-                    WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
-                    builder.append(station.id())
-                            .append(";")
-                            .append(station.measurement())
-                            .append('\n');
-                }
-                try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE, StandardOpenOption.APPEND)) {
-                    bw.write(builder.toString());
-                }
-                catch (IOException e) {
-                    throw new RuntimeException(e);
+        Chunks chunks = new Chunks(size, targetBytes);
+        AtomicLong rowsWritten = new AtomicLong();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // chunks are claimed in order, so a worker only ever waits for chunks that are already being encoded
+            int numberOfWorkers = (int) Math.max(1, Math.min(chunks.count(), workers));
+            CompletableFuture<?>[] futures = new CompletableFuture[numberOfWorkers];
+            for (int w = 0; w < numberOfWorkers; w++) {
+                futures[w] = CompletableFuture.runAsync(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_ROWS * maxLineLength);
+                    Chunk chunk;
+                    while ((chunk = chunks.claim()) != null) {
+                        long position;
+                        try {
+                            RandomGenerator random = seed != null ? ChunkRandom.of(seed, chunk.index()) : ThreadLocalRandom.current();
+                            buffer.clear();
+                            for (int i = 0; i < chunk.rows(); i++) {
+                                int s = random.nextInt(prefixes.length);
+                                buffer.put(prefixes[s]);
+                                putTenths(buffer, stations.get(s).measurementInTenths(random));
+                                buffer.put((byte) '\n');
+                            }
+                            buffer.flip();
+
+                            position = chunk.start().join();
+                            if (position >= chunks.targetBytes) {
+                                // claimed before the target was reached by an earlier chunk
+                                chunk.end().complete(position);
+                                continue;
+                            }
+                            int rows = chunk.rows();
+                            if (position + buffer.limit() > chunks.targetBytes) {
+                                rows = cutAfterLineAt(buffer, (int) (chunks.targetBytes - position - 1));
+                                chunks.full = true;
+                            }
+                            chunk.end().complete(position + buffer.limit());
+                            rowsWritten.addAndGet(rows);
+                        }
+                        catch (RuntimeException | Error e) {
+                            // the chunks after this one wait for its end
+                            chunk.end().completeExceptionally(e);
+                            throw e;
+                        }
+
+                        try {
+                            while (buffer.hasRemaining()) {
+                                position += channel.write(buffer, position);
+                            }
+                        }
+                        catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                }, EXECUTOR_SERVICE);
+            }
+
+            CompletableFuture.allOf(futures).join();
+        }
+        return rowsWritten.get();
+    }
+
+    /**
+     * @param size e.g. {@code 50GB}, {@code 512m} or {@code 1000}, with binary units
+     */
+    private static long parseSize(String size) {
+        Matcher matcher = SIZE.matcher(size.strip());
+        if (!matcher.matches()) {
+            throw new NumberFormatException("Not a size: " + size);
+        }
+        String unit = matcher.group(2).toUpperCase(Locale.ROOT);
+        int shift = unit.isEmpty() ? 0 : 10 * ("KMGT".indexOf(unit) + 1);
+        long value = Long.parseLong(matcher.group(1));
+        if (value > Long.MAX_VALUE >> shift) {
+            throw new NumberFormatException("Size too large: " + size);
+        }
+        return value << shift;
+    }
+
+    /**
+     * Limits {@code buffer} to the lines up to the one containing {@code index}.
+     *
+     * @return # of lines left
+     */
+    private static int cutAfterLineAt(ByteBuffer buffer, int index) {
+        int rows = 0;
+        for (int i = 0; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                rows++;
+                if (i >= index) {
+                    buffer.limit(i + 1);
+                    break;
                 }
-            }, EXECUTOR_SERVICE);
+            }
         }
+        return rows;
+    }
+
+    /**
+     * A claimed chunk. {@code start} completes with its file position once the chunk before it is encoded,
+     * {@code end} is completed by the claiming worker as soon as its own length is known.
+     */
+    private record Chunk(long index, int rows, CompletableFuture<Long> start, CompletableFuture<Long> end) {
+    }
+
+    /**
+     * Hands out chunks in order, until {@code rows} are claimed or a chunk reached {@code targetBytes}. Only the
+     * futures of chunks in flight are referenced, so there is no per-chunk state for the whole file.
+     */
+    private static final class Chunks {
+        private final long rows;
+        private final long targetBytes;
+        private long claimed;
+        private long index;
+        private CompletableFuture<Long> tail = CompletableFuture.completedFuture(0L);
+        private volatile boolean full;
 
-        CompletableFuture.allOf(futures).join();
+        Chunks(long rows, long targetBytes) {
+            this.rows = rows;
+            this.targetBytes = targetBytes;
+        }
 
-        System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
+        /**
+         * @return # of chunks for {@code rows}, {@link Long#MAX_VALUE} if only the size is given
+         */
+        long count() {
+            return rows / CHUNK_ROWS + (rows % CHUNK_ROWS == 0 ? 0 : 1);
+        }
+
+        synchronized Chunk claim() {
+            if (full || claimed >= rows) {
+                return null;
+            }
+            int chunkRows = (int) Math.min(CHUNK_ROWS, rows - claimed);
+            Chunk chunk = new Chunk(index++, chunkRows, tail, new CompletableFuture<>());
+            claimed += chunkRows;
+            tail = chunk.end();
+            return chunk;
+        }
+    }
+
+    /**
+     * Puts {@code tenths / 10.0} the way {@link Double#toString(double)} prints it, e.g. {@code -12.3} or {@code 0.0}.
+     */
+    private static void putTenths(ByteBuffer buffer, long tenths) {
+        if (tenths < 0) {
+            buffer.put((byte) '-');
+            tenths = -tenths;
+        }
+        long whole = tenths / 10;
+        long divisor = 1;
+        while (divisor <= whole / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + whole / divisor % 10));
+        }
+        buffer.put((byte) '.');
+        buffer.put((byte) ('0' + tenths % 10));
     }
 }
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Finds the {@code ';'} and {@code '\n'} delimiters of {@code station;temperature} lines and hands out
+ * {@code (lineStart, semicolon, lineEnd)} offsets in batches of up to {@link #BATCH_SIZE} lines.
+ * <p>
+ * Blocks of {@code ByteVector.SPECIES_PREFERRED} bytes are compared at once. When the preferred species is narrower
+ * than 16 bytes, 8 byte words are compared with SWAR bit tricks instead.
+ * <p>
+ * Only lines terminated by {@code '\n'} are reported, {@code lineEnd} is the offset of that {@code '\n'}. Bytes after
+ * the last {@code '\n'} before {@code end} are left to the caller, see {@link #remainder()}.
+ */
+public final class DelimiterScanner {
+    public static final int BATCH_SIZE = 256;
+
+    private static final String FORCE_SWAR_PROPERTY = "dev.morling.onebrc.DelimiterScanner.forceSwar";
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final boolean VECTORIZED = !Boolean.getBoolean(FORCE_SWAR_PROPERTY)
+            && BYTE_SPECIES.vectorByteSize() >= 16 && BYTE_SPECIES.vectorByteSize() <= Long.SIZE;
+    private static final int BLOCK_SIZE = VECTORIZED ? BYTE_SPECIES.vectorByteSize() : Long.BYTES;
+
+    private static final ValueLayout.OfLong WORD_LAYOUT = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final long SEMICOLONS = 0x3b3b3b3b3b3b3b3bL;
+    private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+    private static final long LOW_7_BITS = 0x7f7f7f7f7f7f7f7fL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    public final long[] lineStarts = new long[BATCH_SIZE];
+    public final long[] semicolons = new long[BATCH_SIZE];
+    public final long[] lineEnds = new long[BATCH_SIZE];
+
+    private final MemorySegment segment;
+    private final long end;
+
+    // offset of the next block to load
+    private long nextBlock;
+    // offset of the block the masks below belong to
+    private long block;
+    // one bit per byte of the current block, set for ';' and '\n' not handed out yet
+    private long delimiterMask;
+    // one bit per byte of the current block, set for '\n'
+    private long newlineMask;
+
+    private long lineStart;
+    private long semicolon = -1;
+
+    /**
+     * @param segment the segment to scan
+     * @param start   offset of the first line, must be the start of a line
+     * @param end     offset after the last byte to scan
+     */
+    public DelimiterScanner(final MemorySegment segment, final long start, final long end) {
+        this.segment = segment;
+        this.end = end;
+        this.nextBlock = start;
+        this.lineStart = start;
+    }
+
+    public static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    /**
+     * Scans up to {@link #BATCH_SIZE} lines into {@link #lineStarts}, {@link #semicolons} and {@link #lineEnds}.
+     *
+     * @return the number of lines found, {@code 0} once the range is exhausted
+     */
+    public int next() {
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            final var mask = this.delimiterMask;
+            if (mask == 0L) {
+                if (!loadBlock()) {
+                    break;
+                }
+                continue;
+            }
+
+            final var bit = Long.numberOfTrailingZeros(mask);
+            final var position = this.block + bit;
+            // unset the lowest set bit
+            this.delimiterMask = mask & (mask - 1L);
+
+            if (((this.newlineMask >>> bit) & 1L) == 0L) {
+                this.semicolon = position;
+            }
+            else {
+                this.lineStarts[count] = this.lineStart;
+                this.semicolons[count] = this.semicolon;
+                this.lineEnds[count] = position;
+                count++;
+                this.lineStart = position + 1L;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the offset after the last {@code '\n'} handed out, equal to {@code end} if the range ends with a
+     *         complete line
+     */
+    public long remainder() {
+        return this.lineStart;
+    }
+
+    private boolean loadBlock() {
+        final var position = this.nextBlock;
+        if (position >= this.end) {
+            return false;
+        }
+
+        long newlines;
+        long semicolons;
+        if (position + BLOCK_SIZE <= this.end) {
+            if (VECTORIZED) {
+                final var bytes = ByteVector.fromMemorySegment(BYTE_SPECIES, this.segment, position, ByteOrder.nativeOrder());
+                newlines = bytes.eq((byte) '\n').toLong();
+                semicolons = bytes.eq((byte) ';').toLong();
+            }
+            else {
+                final var word = this.segment.get(WORD_LAYOUT, position);
+                newlines = matches(word, NEWLINES);
+                semicolons = matches(word, SEMICOLONS);
+            }
+            this.nextBlock = position + BLOCK_SIZE;
+        }
+        else {
+            newlines = 0L;
+            semicolons = 0L;
+            for (long i = position; i < this.end; i++) {
+                final var b = this.segment.get(ValueLayout.JAVA_BYTE, i);
+                if (b == '\n') {
+                    newlines |= 1L << (i - position);
+                }
+                else if (b == ';') {
+                    semicolons |= 1L << (i - position);
+                }
+            }
+            this.nextBlock = this.end;
+        }
+
+        this.block = position;
+        this.newlineMask = newlines;
+        this.delimiterMask = newlines | semicolons;
+        return true;
+    }
+
+    /**
+     * @return one bit per byte of {@code word} that equals the byte repeated in {@code pattern}
+     */
+    private static long matches(final long word, final long pattern) {
+        final var x = word ^ pattern;
+        // high bit of every byte is set iff the byte is zero, without the false positives of the shorter variant
+        final var zeroBytes = ~(((x & LOW_7_BITS) + LOW_7_BITS) | x | LOW_7_BITS);
+        return Long.compress(zeroBytes, HIGH_BITS);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code madvise(2)} hints for mapped input, called through the FFM linker.
+ * <ul>
+ * <li>{@code SEQUENTIAL}: every worker marks its range as read sequentially, which makes the kernel read ahead more
+ * aggressively</li>
+ * <li>{@code WILLNEED}: every worker asks for its whole range to be read in before it starts</li>
+ * <li>{@code HUGEPAGE}: the mapping may be backed by huge pages; only applied if transparent huge pages are set to
+ * {@code madvise}, with {@code always} it is the default and with {@code never} it has no effect</li>
+ * <li>{@code DONTNEED}: every {@link #RELEASE_WINDOW} bytes and at the end of every chunk, workers unmap the pages
+ * behind their read cursor with {@code MADV_DONTNEED}. That bounds the resident set of the process, but on a shared
+ * file mapping the pages stay in the page cache.</li>
+ * <li>{@code PAGEOUT}: like {@code DONTNEED}, but with {@code MADV_PAGEOUT}, which also reclaims the pages from the
+ * page cache, so a file larger than RAM does not evict everything else. The kernel skips pages of files the process
+ * may not write. Kernels before 5.4 reject it with {@code EINVAL}, then {@code MADV_DONTNEED} is used instead.</li>
+ * </ul>
+ * Hints are selected with a comma separated list like {@code sequential,dontneed}. They never change results, pages
+ * released with {@code DONTNEED} or {@code PAGEOUT} are read again from the file if touched later. Without {@code madvise}, e.g. on
+ * systems other than Linux, they are ignored.
+ */
+public final class MemoryAdvice {
+    public static final MemoryAdvice NONE = new MemoryAdvice(EnumSet.noneOf(Advice.class));
+
+    public static final long RELEASE_WINDOW = 64L << 20;
+
+    public enum Advice {
+        // values of the Linux MADV_* constants
+        SEQUENTIAL(2),
+        WILLNEED(3),
+        DONTNEED(4),
+        HUGEPAGE(14),
+        PAGEOUT(21);
+
+        private final int value;
+
+        Advice(int value) {
+            this.value = value;
+        }
+    }
+
+    private final Set<Advice> advice;
+    private final LongAdder releasedBytes = new LongAdder();
+
+    public MemoryAdvice(Set<Advice> advice) {
+        this.advice = advice.isEmpty() ? EnumSet.noneOf(Advice.class) : EnumSet.copyOf(advice);
+    }
+
+    /**
+     * @param spec comma separated hints, e.g. {@code sequential,dontneed}; {@code null} or empty for none
+     */
+    public static MemoryAdvice parse(String spec) {
+        if (spec == null || spec.isBlank()) {
+            return NONE;
+        }
+        Set<Advice> advice = EnumSet.noneOf(Advice.class);
+        for (String name : spec.split(",")) {
+            advice.add(Advice.valueOf(name.strip().toUpperCase(Locale.ROOT)));
+        }
+        return new MemoryAdvice(advice);
+    }
+
+    public boolean isEnabled(Advice hint) {
+        return advice.contains(hint);
+    }
+
+    /**
+     * To be called once per mapping.
+     */
+    public void onMapping(long address, long size) {
+        if (isEnabled(Advice.HUGEPAGE) && Libc.THP_MADVISE) {
+            madvise(address, address + size, Advice.HUGEPAGE);
+        }
+    }
+
+    /**
+     * To be called by a worker before it reads {@code [address, address + size)}.
+     */
+    public void onRange(long address, long size) {
+        if (isEnabled(Advice.SEQUENTIAL)) {
+            madvise(address, address + size, Advice.SEQUENTIAL);
+        }
+        if (isEnabled(Advice.WILLNEED)) {
+            madvise(address, address + size, Advice.WILLNEED);
+        }
+    }
+
+    /**
+     * To be called by a worker as it reads. Releases the pages in {@code [released, cursor)} once that is at least
+     * {@link #RELEASE_WINDOW} bytes.
+     *
+     * @return the new start of the pages not yet dropped, pass it as {@code released} to the next call
+     */
+    public long releaseBehind(long released, long cursor) {
+        if (!releases() || cursor - released < RELEASE_WINDOW) {
+            return released;
+        }
+        return release(released, cursor);
+    }
+
+    /**
+     * To be called by a worker once it is done with a chunk that ends at {@code end}. Releases the pages in
+     * {@code [released, end)} whatever their size, so chunks smaller than {@link #RELEASE_WINDOW} are released too.
+     *
+     * @param released the result of the last {@link #releaseBehind(long, long)} for the chunk, or its start
+     */
+    public void releaseChunk(long released, long end) {
+        if (releases()) {
+            release(released, end);
+        }
+    }
+
+    /**
+     * @return the # of bytes released by {@link #releaseBehind(long, long)} and {@link #releaseChunk(long, long)} so
+     *         far, only counting calls that {@code madvise} accepted
+     */
+    public long releasedBytes() {
+        return releasedBytes.sum();
+    }
+
+    private boolean releases() {
+        return isEnabled(Advice.DONTNEED) || isEnabled(Advice.PAGEOUT);
+    }
+
+    private long release(long released, long cursor) {
+        // only pages entirely behind the cursor, the page under it may be shared with the next chunk
+        long end = cursor & -Libc.PAGE_SIZE;
+        long start = (released + Libc.PAGE_SIZE - 1) & -Libc.PAGE_SIZE;
+        if (end <= start) {
+            return released;
+        }
+        int result = -1;
+        if (isEnabled(Advice.PAGEOUT) && !Libc.pageOutUnsupported) {
+            result = madvise(start, end, Advice.PAGEOUT.value);
+            // kernels without MADV_PAGEOUT, remembered so they are not asked again
+            if (result == Libc.EINVAL) {
+                Libc.pageOutUnsupported = true;
+            }
+        }
+        if (result != 0 && (isEnabled(Advice.DONTNEED) || Libc.pageOutUnsupported)) {
+            result = madvise(start, end, Advice.DONTNEED.value);
+        }
+        if (result == 0) {
+            releasedBytes.add(end - start);
+        }
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return advice.toString();
+    }
+
+    private static void madvise(long start, long end, Advice hint) {
+        // the result is ignored, a hint that cannot be applied is not an error
+        int ignored = madvise(start, end, hint.value);
+    }
+
+    /**
+     * @return 0 if {@code madvise} succeeded or there is nothing to advise, otherwise its {@code errno}; -1 without
+     *         {@code madvise}
+     */
+    private static int madvise(long start, long end, int advice) {
+        if (Libc.MADVISE == null) {
+            return -1;
+        }
+        // the start has to be page aligned, the length is rounded up by the kernel
+        long alignedStart = start & -Libc.PAGE_SIZE;
+        if (end <= alignedStart) {
+            return 0;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment callState = arena.allocate(Libc.CALL_STATE);
+            int result = (int) Libc.MADVISE.invokeExact(callState, MemorySegment.ofAddress(alignedStart), end - alignedStart, advice);
+            return result == 0 ? 0 : callState.get(ValueLayout.JAVA_INT, Libc.ERRNO_OFFSET);
+        }
+        catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Only initialized once a hint is applied, so runs without hints never touch the native linker.
+     */
+    private static final class Libc {
+        private static final int EINVAL = 22;
+
+        private static final Linker LINKER = Linker.nativeLinker();
+        private static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+        private static final long ERRNO_OFFSET = CALL_STATE.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+        // takes the segment errno is captured into as its first argument
+        private static final MethodHandle MADVISE = LINKER.defaultLookup().find("madvise")
+                .map(madvise -> LINKER.downcallHandle(madvise,
+                        FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT),
+                        Linker.Option.captureCallState("errno")))
+                .orElse(null);
+        private static final long PAGE_SIZE = pageSize();
+        private static final boolean THP_MADVISE = transparentHugePagesOnMadvise();
+        // set once by the first worker that gets EINVAL; until the others see it, they find out for themselves
+        private static volatile boolean pageOutUnsupported;
+
+        private static long pageSize() {
+            return LINKER.defaultLookup().find("getpagesize")
+                    .map(getpagesize -> {
+                        try {
+                            return (long) (int) LINKER.downcallHandle(getpagesize, FunctionDescriptor.of(ValueLayout.JAVA_INT)).invokeExact();
+                        }
+                        catch (Throwable e) {
+                            throw new RuntimeException(e);
+                        }
+                    })
+                    .orElse(4096L);
+        }
+
+        private static boolean transparentHugePagesOnMadvise() {
+            try {
+                return Files.readString(Path.of("/sys/kernel/mm/transparent_hugepage/enabled")).contains("[madvise]");
+            }
+            catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -47,34 +47,9 @@ public class PerfectHashSearch_hundredwatt {
 
         // Figure out encoding for all possible temperature values (1999 total)
         Map<Long, Short> decodeTemperatureMap = new HashMap<>();
-        for (short i = -999; i <= 999; i++) {
-            long word = 0;
-            int shift = 0;
-            if (i < 0) {
-                word |= ((long) '-') << shift;
-                shift += 8;
-            }
-            if (Math.abs(i) >= 100) {
-                int hh = Math.abs(i) / 100;
-                int tt = (Math.abs(i) - hh * 100) / 10;
-
-                word |= ((long) (hh + '0')) << shift;
-                shift += 8;
-                word |= ((long) (tt + '0')) << shift;
-            }
-            else {
-                int tt = Math.abs(i) / 10;
-                // convert to ascii
-                word |= ((long) (tt + '0')) << shift;
-            }
-            shift += 8;
-            word |= ((long) '.') << shift;
-            shift += 8;
-            int uu = Math.abs(i) % 10;
-            word |= ((long) (uu + '0')) << shift;
-
+        for (short i = TemperatureEncodings.MIN_TENTHS; i <= TemperatureEncodings.MAX_TENTHS; i++) {
             // 31302e3000000000
-            decodeTemperatureMap.put(word, i);
+            decodeTemperatureMap.put(TemperatureEncodings.word(i), i);
         }
 
         ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
@@ -0,0 +1,353 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Reads ranges of a file with positional {@link FileChannel#read(ByteBuffer, long)} calls into pooled direct buffers,
+ * as an alternative to mapping it.
+ * <p>
+ * A range is read in blocks of {@code blockSize} bytes. The read of the next block runs on a virtual thread while the
+ * current one is handed out, so every range reads ahead with two buffers. The partial line at the end of a block is
+ * copied in front of the next block, the consumer only ever gets complete lines. Lines belong to the range they start
+ * in: unless a range starts at 0, the bytes up to the first line start at or after its start are skipped, and the
+ * line running over its end is read to completion. The last line of the file is handed out even without a trailing
+ * {@code '\n'}.
+ * <p>
+ * With {@code direct}, files are opened with {@code O_DIRECT}, so reads bypass the page cache. Buffers, block size and
+ * read offsets are then aligned to the block size of the file store.
+ * <p>
+ * Every block is followed by at least {@link #PADDING} readable bytes, like a mapping followed by the rest of its
+ * page, so parsers may read a little past the last line. A block is only valid until the consumer returns.
+ */
+public final class PositionalReader {
+    public static final int DEFAULT_BLOCK_SIZE = 4 << 20;
+    public static final int PADDING = 64;
+
+    // longest partial line carried over in front of the next block
+    private static final int MAX_CARRY = 4096;
+    private static final int PAGE_SIZE = 4096;
+
+    private static final ExecutorService READ_AHEAD = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final int blockSize;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+
+    public PositionalReader() {
+        this(DEFAULT_BLOCK_SIZE, false);
+    }
+
+    /**
+     * @param blockSize # of bytes per read, with {@code direct} a multiple of the file store's block size
+     * @param direct    whether to open files with {@code O_DIRECT}
+     * @throws UnsupportedOperationException with {@code direct} if the JDK has no {@code O_DIRECT} open option
+     */
+    public PositionalReader(int blockSize, boolean direct) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        if (direct && DirectOption.DIRECT == null) {
+            throw new UnsupportedOperationException("O_DIRECT is not available, this JDK has no com.sun.nio.file.ExtendedOpenOption.DIRECT");
+        }
+        this.blockSize = blockSize;
+        this.direct = direct;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public Source open(Path file) throws IOException {
+        int alignment = 1;
+        FileChannel channel;
+        if (direct) {
+            alignment = alignment(file);
+            if (blockSize % alignment != 0) {
+                throw new IllegalArgumentException("blockSize " + blockSize + " is not a multiple of the block size " + alignment + " of " + file);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.READ, DirectOption.DIRECT);
+        }
+        else {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        }
+        return new Source(channel, alignment);
+    }
+
+    /**
+     * {@code com.sun.nio.file.ExtendedOpenOption.DIRECT}, looked up reflectively: naming the JDK internal class
+     * directly gives a proprietary API warning that cannot be suppressed.
+     */
+    private static final class DirectOption {
+        static final OpenOption DIRECT = lookup();
+
+        private static OpenOption lookup() {
+            try {
+                Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+                return (OpenOption) options.getField("DIRECT").get(null);
+            }
+            catch (ReflectiveOperationException | ClassCastException e) {
+                return null;
+            }
+        }
+    }
+
+    private static int alignment(Path file) throws IOException {
+        try {
+            // the same value the JDK checks O_DIRECT reads against
+            return Math.toIntExact(Files.getFileStore(file).getBlockSize());
+        }
+        catch (UnsupportedOperationException e) {
+            return PAGE_SIZE;
+        }
+    }
+
+    /**
+     * @param head      # of bytes in front of the block, a multiple of {@code alignment}
+     * @param alignment power of two the buffer address is aligned to
+     */
+    private ByteBuffer acquire(int head, int alignment) {
+        ByteBuffer buffer;
+        while ((buffer = idle.poll()) != null) {
+            // buffers aligned for another file store may not fit, they are dropped
+            if (buffer.capacity() >= head + blockSize + PADDING && (MemorySegment.ofBuffer(buffer).address() & (alignment - 1)) == 0) {
+                return buffer;
+            }
+        }
+        // alignedSlice rounds both ends to the alignment
+        int capacity = (head + blockSize + PADDING + alignment - 1) & -alignment;
+        return ByteBuffer.allocateDirect(capacity + alignment).alignedSlice(alignment);
+    }
+
+    private void release(ByteBuffer buffer) {
+        idle.add(buffer);
+    }
+
+    /**
+     * An open file, it may be read by many threads at once.
+     */
+    public final class Source implements AutoCloseable {
+        private final FileChannel channel;
+        private final int alignment;
+        // offset of the block in the buffers, room for the carried over line and keeps the block aligned
+        private final int head;
+        private final long size;
+
+        private Source(FileChannel channel, int alignment) throws IOException {
+            this.channel = channel;
+            this.alignment = alignment;
+            this.head = Math.max(MAX_CARRY, alignment);
+            this.size = channel.size();
+        }
+
+        /**
+         * @return the size of the file when it was opened, later appends are not read
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Hands the lines starting in {@code [start, end)} to {@code lines}, in order and in blocks of whole lines.
+         */
+        public void read(long start, long end, Consumer<MemorySegment> lines) throws IOException {
+            end = Math.min(end, size);
+            if (start >= end) {
+                return;
+            }
+
+            int bufferAlignment = Math.max(PAGE_SIZE, alignment);
+            ByteBuffer current = acquire(head, bufferAlignment);
+            ByteBuffer next = acquire(head, bufferAlignment);
+            Future<Integer> pending = null;
+            try {
+                // the byte before start tells whether start is a line start
+                long skipFrom = start > 0 ? start - 1 : 0;
+                boolean skipping = start > 0;
+                long position = skipFrom & -alignment;
+                int carry = 0;
+
+                pending = readAsync(current, position);
+                while (true) {
+                    int n = await(pending);
+                    pending = null;
+                    // file offset of the first block byte, at head in the buffer
+                    long blockStart = position;
+                    position += n;
+                    boolean eof = position >= size || n < blockSize;
+                    if (!eof && position < end) {
+                        pending = readAsync(next, position);
+                    }
+
+                    MemorySegment block = MemorySegment.ofBuffer(current.clear());
+                    long lineStart = head - carry;
+                    long dataEnd = head + n;
+
+                    if (skipping) {
+                        long newline = indexOf(block, Math.max(head + skipFrom - blockStart, lineStart), dataEnd);
+                        if (newline < 0) {
+                            // still inside the line that belongs to the previous range
+                            if (eof) {
+                                return;
+                            }
+                            carry = 0;
+                            pending = pending != null ? pending : readAsync(next, position);
+                            ByteBuffer swap = current;
+                            current = next;
+                            next = swap;
+                            continue;
+                        }
+                        lineStart = newline + 1;
+                        skipping = false;
+                    }
+                    if (blockStart + lineStart - head >= end) {
+                        return;
+                    }
+
+                    // the range ends with the line running over end, i.e. at the first '\n' at or after end - 1
+                    long last = indexOf(block, Math.max(head + end - 1 - blockStart, lineStart), dataEnd);
+                    boolean done = last >= 0 || eof;
+                    long linesEnd;
+                    if (last >= 0) {
+                        linesEnd = last + 1;
+                    }
+                    else if (eof) {
+                        linesEnd = dataEnd;
+                    }
+                    else {
+                        linesEnd = lastIndexOf(block, lineStart, dataEnd) + 1;
+                        if (linesEnd == 0) {
+                            linesEnd = lineStart;
+                        }
+                    }
+
+                    if (linesEnd > lineStart) {
+                        lines.accept(block.asSlice(lineStart, linesEnd - lineStart));
+                    }
+                    if (done) {
+                        return;
+                    }
+
+                    carry = (int) (dataEnd - linesEnd);
+                    if (carry > MAX_CARRY) {
+                        throw new IOException("Line at offset " + (blockStart + linesEnd - head) + " is longer than " + MAX_CARRY + " bytes");
+                    }
+                    // the block of the next buffer may still be read into, its carry area is not
+                    MemorySegment.copy(block, linesEnd, MemorySegment.ofBuffer(next.clear()), head - carry, carry);
+                    if (pending == null) {
+                        pending = readAsync(next, position);
+                    }
+                    ByteBuffer swap = current;
+                    current = next;
+                    next = swap;
+                }
+            }
+            finally {
+                // a buffer must not be reused while a read is still filling it
+                boolean reusable = true;
+                if (pending != null) {
+                    try {
+                        pending.get();
+                    }
+                    catch (ExecutionException ignored) {
+                        // only the read ahead of a failed or abandoned range, nobody waits for it
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        reusable = false;
+                    }
+                }
+                if (reusable) {
+                    release(current);
+                    release(next);
+                }
+            }
+        }
+
+        private Future<Integer> readAsync(ByteBuffer buffer, long position) {
+            return READ_AHEAD.submit(() -> readBlock(buffer, position));
+        }
+
+        /**
+         * Fills the block of {@code buffer} from {@code position} up to {@code blockSize} bytes or the end of the file.
+         */
+        private int readBlock(ByteBuffer buffer, long position) throws IOException {
+            ByteBuffer block = buffer.duplicate().limit(head + blockSize).position(head);
+            // with O_DIRECT, only the last read may be short and must not be retried at an unaligned offset
+            while (block.hasRemaining() && position + block.position() - head < size) {
+                if (channel.read(block, position + block.position() - head) < 0) {
+                    break;
+                }
+            }
+            return (int) Math.min(block.position() - head, size - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static int await(Future<Integer> read) throws IOException {
+        try {
+            return read.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static long indexOf(MemorySegment block, long from, long to) {
+        for (long i = from; i < to; i++) {
+            if (block.get(ValueLayout.JAVA_BYTE, i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long lastIndexOf(MemorySegment block, long from, long to) {
+        for (long i = to - 1; i >= from; i--) {
+            if (block.get(ValueLayout.JAVA_BYTE, i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
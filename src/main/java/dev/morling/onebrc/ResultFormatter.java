@@ -0,0 +1,406 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Collects per-station results and writes them in the {@code {station=min/mean/max, ...}} format.
+ * <p>
+ * Temperatures are passed in tenths of a degree. Station names are copied into one shared byte array and sorted by
+ * their raw UTF-8 bytes, which orders them by code point. Above {@link #PARALLEL_SORT_THRESHOLD} stations the sort
+ * runs on the common fork/join pool. The output is formatted as fixed-point digits into a single byte array and
+ * written with one channel write, so no {@code String} is created per station.
+ * <p>
+ * An instance can be {@link #reset() reset} and reused; its arrays only ever grow. It also serves as the result of
+ * {@link Aggregator#aggregate(java.nio.file.Path)}, the accessors take the index of a station in sorted order. Once all
+ * stations are added, the accessors may be called from any number of threads: the first one sorts under the lock of
+ * the formatter, which also publishes the sorted order to the others. Adding, resetting and formatting are not thread
+ * safe.
+ */
+public final class ResultFormatter {
+    public static final int PARALLEL_SORT_THRESHOLD = 1 << 13;
+
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+    // "-214748364.8", the longest tenths value of an int; means are within [min, max]
+    private static final int MAX_TENTHS_LENGTH = 12;
+    // "=" + 3 values + "//" + ", "
+    private static final int MAX_ENTRY_OVERHEAD = 1 + 3 * MAX_TENTHS_LENGTH + 2 + 2;
+
+    // stdout is never closed, the stream only exists to get at its channel
+    private static final FileChannel STDOUT = new FileOutputStream(FileDescriptor.out).getChannel();
+
+    private byte[] names;
+    private int namesLength;
+
+    private int[] nameOffsets;
+    private int[] nameLengths;
+    // the first 8 name bytes, big endian and zero padded, compared unsigned before the full names
+    private long[] prefixes;
+    private int[] mins;
+    private int[] maxs;
+    private long[] sums;
+    private long[] counts;
+    private int size;
+
+    private int[] order;
+    private int[] scratch;
+    private boolean sorted;
+    private byte[] output;
+
+    public ResultFormatter() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedStations initial capacity, the formatter grows past it when needed
+     */
+    public ResultFormatter(int expectedStations) {
+        int capacity = Math.max(1, expectedStations);
+        this.names = new byte[capacity * 16];
+        this.nameOffsets = new int[capacity];
+        this.nameLengths = new int[capacity];
+        this.prefixes = new long[capacity];
+        this.mins = new int[capacity];
+        this.maxs = new int[capacity];
+        this.sums = new long[capacity];
+        this.counts = new long[capacity];
+        this.order = new int[capacity];
+        this.scratch = new int[capacity];
+        this.output = new byte[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void reset() {
+        size = 0;
+        namesLength = 0;
+        sorted = false;
+    }
+
+    public String name(int index) {
+        int station = station(index);
+        return new String(names, nameOffsets[station], nameLengths[station], StandardCharsets.UTF_8);
+    }
+
+    public double min(int index) {
+        return mins[station(index)] / 10.0;
+    }
+
+    public double mean(int index) {
+        int station = station(index);
+        return mean(sums[station], counts[station]) / 10.0;
+    }
+
+    public double max(int index) {
+        return maxs[station(index)] / 10.0;
+    }
+
+    public long count(int index) {
+        return counts[station(index)];
+    }
+
+    private int station(int index) {
+        Objects.checkIndex(index, size);
+        sort();
+        return order[index];
+    }
+
+    /**
+     * Adds a station whose name is {@code name[offset, offset + length)}.
+     */
+    public void add(byte[] name, int offset, int length, int min, int max, long sum, long count) {
+        int nameOffset = reserve(length);
+        System.arraycopy(name, offset, names, nameOffset, length);
+        addStats(nameOffset, length, min, max, sum, count);
+    }
+
+    /**
+     * Adds a station whose name is {@code segment[offset, offset + length)}.
+     */
+    public void add(MemorySegment segment, long offset, int length, int min, int max, long sum, long count) {
+        int nameOffset = reserve(length);
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset, names, nameOffset, length);
+        addStats(nameOffset, length, min, max, sum, count);
+    }
+
+    /**
+     * Aggregates the stations of all {@code parts} into a new formatter, stations with the same name are merged.
+     */
+    public static ResultFormatter combine(List<ResultFormatter> parts) {
+        ResultFormatter combined = new ResultFormatter();
+        // keys wrap the name bytes of the parts, which are not modified while combining
+        Map<ByteBuffer, Integer> stations = new HashMap<>();
+        for (ResultFormatter part : parts) {
+            for (int i = 0; i < part.size; i++) {
+                int offset = part.nameOffsets[i];
+                int length = part.nameLengths[i];
+                Integer station = stations.get(ByteBuffer.wrap(part.names, offset, length));
+                if (station == null) {
+                    stations.put(ByteBuffer.wrap(part.names, offset, length), combined.size);
+                    combined.add(part.names, offset, length, part.mins[i], part.maxs[i], part.sums[i], part.counts[i]);
+                }
+                else {
+                    combined.mins[station] = Math.min(combined.mins[station], part.mins[i]);
+                    combined.maxs[station] = Math.max(combined.maxs[station], part.maxs[i]);
+                    combined.sums[station] += part.sums[i];
+                    combined.counts[station] += part.counts[i];
+                }
+            }
+        }
+        return combined;
+    }
+
+    /**
+     * Sorts the stations and formats them, followed by a {@code '\n'}.
+     *
+     * @return a buffer over the formatted bytes, only valid until the formatter is used again
+     */
+    public ByteBuffer format() {
+        sort();
+
+        long capacity = 3L + namesLength + (long) size * MAX_ENTRY_OVERHEAD;
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Result of " + size + " stations is too large to format");
+        }
+        if (output.length < capacity) {
+            output = new byte[(int) capacity];
+        }
+
+        byte[] out = output;
+        int pos = 0;
+        out[pos++] = '{';
+        for (int i = 0; i < size; i++) {
+            int station = order[i];
+            if (i > 0) {
+                out[pos++] = ',';
+                out[pos++] = ' ';
+            }
+            System.arraycopy(names, nameOffsets[station], out, pos, nameLengths[station]);
+            pos += nameLengths[station];
+            out[pos++] = '=';
+            pos = putTenths(out, pos, mins[station]);
+            out[pos++] = '/';
+            pos = putTenths(out, pos, mean(sums[station], counts[station]));
+            out[pos++] = '/';
+            pos = putTenths(out, pos, maxs[station]);
+        }
+        out[pos++] = '}';
+        out[pos++] = '\n';
+        return ByteBuffer.wrap(out, 0, pos);
+    }
+
+    @Override
+    public String toString() {
+        ByteBuffer formatted = format();
+        // without the trailing '\n'
+        return new String(formatted.array(), 0, formatted.limit() - 1, StandardCharsets.UTF_8);
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer formatted = format();
+        while (formatted.hasRemaining()) {
+            channel.write(formatted);
+        }
+    }
+
+    /**
+     * Writes to the stdout file descriptor, bypassing {@code System.out}, which is flushed first.
+     */
+    public void writeToStdout() throws IOException {
+        System.out.flush();
+        writeTo(STDOUT);
+    }
+
+    /**
+     * The mean in tenths, rounded like {@code Math.round(sum / 10.0 / count * 10.0)} to match the double based
+     * implementations.
+     */
+    static long mean(long sum, long count) {
+        return Math.round(sum / 10.0 / count * 10.0);
+    }
+
+    private int reserve(int length) {
+        if (size == order.length) {
+            int capacity = Math.max(order.length * 2, 16);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+            prefixes = Arrays.copyOf(prefixes, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            order = new int[capacity];
+            scratch = new int[capacity];
+        }
+        if (names.length - namesLength < length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+        }
+        int offset = namesLength;
+        namesLength += length;
+        return offset;
+    }
+
+    private void addStats(int nameOffset, int length, int min, int max, long sum, long count) {
+        long prefix = 0;
+        for (int i = 0; i < Math.min(length, Long.BYTES); i++) {
+            prefix |= (names[nameOffset + i] & 0xffL) << (Long.SIZE - Byte.SIZE * (i + 1));
+        }
+
+        nameOffsets[size] = nameOffset;
+        nameLengths[size] = length;
+        prefixes[size] = prefix;
+        mins[size] = min;
+        maxs[size] = max;
+        sums[size] = sum;
+        counts[size] = count;
+        size++;
+        sorted = false;
+    }
+
+    private synchronized void sort() {
+        if (sorted) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        if (size >= PARALLEL_SORT_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new SortTask(0, size));
+        }
+        else {
+            mergeSort(0, size);
+        }
+        sorted = true;
+    }
+
+    /**
+     * Sorts {@code order[from, to)} using {@code scratch[from, to)} as merge buffer.
+     */
+    private void mergeSort(int from, int to) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(from, to);
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(from, middle);
+        mergeSort(middle, to);
+        merge(from, middle, to);
+    }
+
+    private void insertionSort(int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int station = order[i];
+            int j = i - 1;
+            while (j >= from && compare(order[j], station) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = station;
+        }
+    }
+
+    private void merge(int from, int middle, int to) {
+        if (compare(order[middle - 1], order[middle]) <= 0) {
+            // already in order
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right == to || (left < middle && compare(scratch[left], scratch[right]) <= 0)) {
+                order[i] = scratch[left++];
+            }
+            else {
+                order[i] = scratch[right++];
+            }
+        }
+    }
+
+    private int compare(int a, int b) {
+        int byPrefix = Long.compareUnsigned(prefixes[a], prefixes[b]);
+        if (byPrefix != 0) {
+            return byPrefix;
+        }
+        return Arrays.compareUnsigned(
+                names, nameOffsets[a], nameOffsets[a] + nameLengths[a],
+                names, nameOffsets[b], nameOffsets[b] + nameLengths[b]);
+    }
+
+    /**
+     * Writes {@code tenths / 10} with one decimal place, e.g. {@code -123} as {@code -12.3}.
+     */
+    private static int putTenths(byte[] out, int pos, long tenths) {
+        if (tenths < 0) {
+            out[pos++] = '-';
+            tenths = -tenths;
+        }
+        long whole = tenths / 10;
+        int digits = 1;
+        for (long rest = whole / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            out[i] = (byte) ('0' + whole % 10);
+            whole /= 10;
+        }
+        pos += digits;
+        out[pos++] = '.';
+        out[pos++] = (byte) ('0' + tenths % 10);
+        return pos;
+    }
+
+    private final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        SortTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < PARALLEL_SORT_THRESHOLD) {
+                mergeSort(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new SortTask(from, middle), new SortTask(middle, to));
+            merge(from, middle, to);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The byte encodings of all 1999 temperatures of the input, {@code -99.9} to {@code 99.9}, as they appear in a
+ * measurements file: an optional {@code '-'}, one or two integer digits, {@code '.'} and one fractional digit.
+ * Temperatures are given in tenths, i.e. {@code -123} for {@code -12.3}.
+ */
+public final class TemperatureEncodings {
+    public static final int MIN_TENTHS = -999;
+    public static final int MAX_TENTHS = 999;
+    // "-99.9"
+    public static final int MAX_LENGTH = 5;
+
+    private static final byte[][] ENCODINGS = new byte[MAX_TENTHS - MIN_TENTHS + 1][];
+
+    static {
+        for (int tenths = MIN_TENTHS; tenths <= MAX_TENTHS; tenths++) {
+            int abs = Math.abs(tenths);
+            String encoding = (tenths < 0 ? "-" : "") + abs / 10 + "." + abs % 10;
+            ENCODINGS[tenths - MIN_TENTHS] = encoding.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private TemperatureEncodings() {
+    }
+
+    /**
+     * @return the bytes of {@code tenths}, shared and not to be modified
+     */
+    public static byte[] encode(int tenths) {
+        return ENCODINGS[tenths - MIN_TENTHS];
+    }
+
+    /**
+     * @return the bytes of {@code tenths} as a little endian long, the way a parser loading 8 bytes of the line sees
+     *         them, without the bytes following the temperature
+     */
+    public static long word(int tenths) {
+        byte[] encoding = encode(tenths);
+        long word = 0;
+        for (int i = 0; i < encoding.length; i++) {
+            word |= (long) (encoding[i] & 0xFF) << (i * Byte.SIZE);
+        }
+        return word;
+    }
+}
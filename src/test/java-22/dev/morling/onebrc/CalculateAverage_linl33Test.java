@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CalculateAverage_linl33Test {
+    private static final Path SAMPLES = Path.of("src/test/resources/samples");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void batchMatchesEveryFileAndAllFilesTogether() throws IOException {
+        final var samples = samples();
+        final var all = concatenate(samples, this.tempDir.resolve("all.txt"));
+
+        // with 2 threads, at most 4 of the files are open at a time
+        try (final var engine = new CalculateAverage_linl33.Engine(2)) {
+            final var result = engine.aggregateAll(samples, true);
+
+            assertThat(List.copyOf(result.files().keySet())).isEqualTo(samples);
+            for (final var sample : samples) {
+                assertThat(STR."\{result.files().get(sample)}\n").as("%s", sample.getFileName()).isEqualTo(expected(sample));
+            }
+            assertThat(result.combined().toString()).isEqualTo(engine.aggregate(all).toString());
+
+            assertThat(engine.aggregateAll(samples, false).combined()).isNull();
+        }
+    }
+
+    @Test
+    void snapshotsRoundTripAndMerge() throws IOException {
+        final var first = SAMPLES.resolve("measurements-10000-unique-keys.txt");
+        final var second = SAMPLES.resolve("measurements-complex-utf8.txt");
+        final var third = SAMPLES.resolve("measurements-rounding.txt");
+        final var firstSnapshot = this.tempDir.resolve("first.snap");
+        final var secondSnapshot = this.tempDir.resolve("second.snap");
+        final var thirdSnapshot = this.tempDir.resolve("third.snap");
+        final var merged = this.tempDir.resolve("merged.snap");
+
+        try (final var engine = new CalculateAverage_linl33.Engine(3)) {
+            assertThat(STR."\{engine.aggregate(first, firstSnapshot)}\n").isEqualTo(expected(first));
+            assertThat(STR."\{engine.aggregate(second, secondSnapshot)}\n").isEqualTo(expected(second));
+            assertThat(STR."\{engine.aggregate(third, thirdSnapshot)}\n").isEqualTo(expected(third));
+
+            // a loaded snapshot gives the result it was written with
+            assertThat(STR."\{engine.mergeSnapshots(List.of(firstSnapshot), null)}\n").isEqualTo(expected(first));
+
+            final var firstTwo = engine.aggregate(concatenate(List.of(first, second), this.tempDir.resolve("first-two.txt"))).toString();
+            assertThat(engine.mergeSnapshots(List.of(firstSnapshot, secondSnapshot), merged).toString()).isEqualTo(firstTwo);
+
+            // the merged snapshot may be one of the inputs
+            final var all = engine.aggregate(concatenate(List.of(first, second, third), this.tempDir.resolve("all.txt"))).toString();
+            assertThat(engine.mergeSnapshots(List.of(merged, thirdSnapshot), merged).toString()).isEqualTo(all);
+            assertThat(engine.mergeSnapshots(List.of(merged), null).toString()).isEqualTo(all);
+        }
+    }
+
+    @Test
+    void countsBeyondAnIntFailInsteadOfWrapping() throws IOException {
+        final var sample = SAMPLES.resolve("measurements-1.txt");
+        final var snapshot = this.tempDir.resolve("sample.snap");
+
+        try (final var engine = new CalculateAverage_linl33.Engine(1)) {
+            engine.aggregate(sample, snapshot);
+
+            putFirstCount(snapshot, Integer.MAX_VALUE);
+            assertThat(engine.mergeSnapshots(List.of(snapshot), null).count(0)).isEqualTo((long) Integer.MAX_VALUE);
+            assertThatThrownBy(() -> engine.mergeSnapshots(List.of(snapshot, snapshot), null))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("rows for one station");
+
+            putFirstCount(snapshot, Integer.MAX_VALUE + 1L);
+            assertThatThrownBy(() -> engine.mergeSnapshots(List.of(snapshot), null))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining("rows for one station");
+
+            // the engine is still usable afterwards
+            assertThat(STR."\{engine.aggregate(sample)}\n").isEqualTo(expected(sample));
+        }
+    }
+
+    /**
+     * Overwrites the count of the first entry of a snapshot, see the format in {@code CalculateAverage_linl33.Snapshot}.
+     */
+    private static void putFirstCount(final Path snapshot, final long count) throws IOException {
+        try (final var channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            // after the 32 byte header, the count follows the name offset, name length and sum of the entry
+            channel.write(ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(0, count), 32 + 16);
+        }
+    }
+
+    private static List<Path> samples() throws IOException {
+        try (final var files = Files.list(SAMPLES)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".txt")).sorted().toList();
+        }
+    }
+
+    private static String expected(final Path sample) throws IOException {
+        final var name = sample.getFileName().toString();
+        return Files.readString(sample.resolveSibling(STR."\{name.substring(0, name.length() - ".txt".length())}.out"));
+    }
+
+    /**
+     * Writes all {@code files} to {@code target}, adding the newline missing at the end of a file.
+     */
+    private static Path concatenate(final List<Path> files, final Path target) throws IOException {
+        try (final var out = Files.newOutputStream(target)) {
+            for (final var file : files) {
+                final var bytes = Files.readAllBytes(file);
+                out.write(bytes);
+                if (bytes.length > 0 && bytes[bytes.length - 1] != '\n') {
+                    out.write('\n');
+                }
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.marco.marco;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import dev.morling.onebrc.BatchResult;
+import dev.morling.onebrc.MemoryAdvice;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import static com.marco.marco.BlaTest.expected;
+import static com.marco.marco.BlaTest.samples;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Bla2Test {
+
+    // small enough to split every sample but the shortest ones into several chunks
+    private static final long SMALL_CHUNK_SIZE = 64;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void everySchedulingAndMappingMatchesEverySample() throws IOException {
+        for (Bla2.Scheduling scheduling : Bla2.Scheduling.values()) {
+            for (Bla2.Mapping mapping : Bla2.Mapping.values()) {
+                for (long chunkSize : new long[]{ SMALL_CHUNK_SIZE, 8 << 20 }) {
+                    Bla2 bla2 = new Bla2(scheduling, chunkSize, mapping);
+                    for (int threads : new int[]{ 1, 4 }) {
+                        for (Path sample : samples()) {
+                            assertThat(Bla2.format(bla2.process(sample, threads)) + "\n")
+                                    .as("%s with %s, %s, chunks of %d bytes and %d threads", sample.getFileName(), scheduling, mapping, chunkSize, threads)
+                                    .isEqualTo(expected(sample));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void batchMatchesEveryFileAndAllFilesTogether() throws IOException {
+        List<Path> samples = samples();
+        Path all = concatenate(samples, tempDir.resolve("all.txt"));
+
+        for (Bla2.Mapping mapping : Bla2.Mapping.values()) {
+            // with 2 threads, at most 4 of the files are open at a time
+            try (Bla2.Engine engine = new Bla2.Engine(new Bla2(Bla2.Scheduling.CHUNKED, SMALL_CHUNK_SIZE, mapping), 2)) {
+                BatchResult result = engine.aggregateAll(samples, true);
+
+                assertThat(List.copyOf(result.files().keySet())).as("files with %s", mapping).isEqualTo(samples);
+                for (Path sample : samples) {
+                    assertThat(result.files().get(sample) + "\n").as("%s with %s", sample.getFileName(), mapping).isEqualTo(expected(sample));
+                }
+                assertThat(result.combined().toString()).as("all files with %s", mapping).isEqualTo(engine.aggregate(all).toString());
+
+                assertThat(engine.aggregateAll(samples, false).combined()).as("not combined with %s", mapping).isNull();
+            }
+        }
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void releaseHintsReleaseChunksSmallerThanTheWindow() throws IOException {
+        // a few MB, far below MemoryAdvice.RELEASE_WINDOW, so only the release at the end of every chunk applies
+        List<Path> copies = new ArrayList<>();
+        for (Path sample : samples()) {
+            copies.addAll(Collections.nCopies(8, sample));
+        }
+        Path input = concatenate(copies, tempDir.resolve("input.txt"));
+        String expected = Bla2.format(new Bla2(Bla2.Scheduling.CHUNKED, 1 << 20, Bla2.Mapping.FILE).process(input, 2)).toString();
+
+        for (MemoryAdvice.Advice hint : EnumSet.of(MemoryAdvice.Advice.DONTNEED, MemoryAdvice.Advice.PAGEOUT)) {
+            for (Bla2.Scheduling scheduling : Bla2.Scheduling.values()) {
+                MemoryAdvice advice = new MemoryAdvice(EnumSet.of(hint));
+                Bla2 bla2 = new Bla2(scheduling, 1 << 20, Bla2.Mapping.FILE, advice);
+
+                assertThat(Bla2.format(bla2.process(input, 2)).toString()).as("result with %s and %s", hint, scheduling).isEqualTo(expected);
+                assertThat(advice.releasedBytes()).as("released bytes with %s and %s", hint, scheduling).isGreaterThan(Files.size(input) / 2);
+            }
+        }
+    }
+
+    @Test
+    void followerCatchesUpAfterAppendAndTruncation() throws IOException {
+        Path sample = BlaTest.SAMPLES.resolve("measurements-10000-unique-keys.txt");
+        Path smaller = BlaTest.SAMPLES.resolve("measurements-3.txt");
+        byte[] lines = Files.readAllBytes(concatenate(List.of(sample), tempDir.resolve("lines.txt")));
+        // a few bytes into the line after the middle one, so the first refresh sees a partial line
+        int firstEnd = indexOf(lines, (byte) '\n', lines.length / 2) + 1;
+        int cut = firstEnd + 5;
+
+        for (Bla2.Mapping mapping : Bla2.Mapping.values()) {
+            Bla2 bla2 = new Bla2(Bla2.Scheduling.CHUNKED, 4096, mapping);
+            Path file = tempDir.resolve("followed-" + mapping + ".txt");
+            Files.write(file, Arrays.copyOf(lines, cut));
+
+            try (Bla2.Follower follower = new Bla2.Follower(bla2, file, 3)) {
+                assertThat(follower.refresh()).as("first refresh with %s", mapping).isEqualTo((long) firstEnd);
+                assertThat(follower.offset()).as("offset with %s", mapping).isEqualTo((long) firstEnd);
+                Path firstLines = Files.write(tempDir.resolve("first-" + mapping + ".txt"), Arrays.copyOf(lines, firstEnd));
+                assertThat(follower.result().toString()).as("first lines with %s", mapping).isEqualTo(Bla2.format(bla2.process(firstLines, 1)).toString());
+
+                Files.write(file, Arrays.copyOfRange(lines, cut, lines.length), StandardOpenOption.APPEND);
+                assertThat(follower.refresh()).as("refresh after append with %s", mapping).isEqualTo((long) lines.length - firstEnd);
+                assertThat(follower.result() + "\n").as("all lines with %s", mapping).isEqualTo(expected(sample));
+                assertThat(follower.refresh()).as("refresh without append with %s", mapping).isEqualTo(0L);
+
+                concatenate(List.of(smaller), file);
+                assertThat(follower.refresh()).as("refresh after truncation with %s", mapping).isEqualTo(Files.size(file));
+                assertThat(follower.result() + "\n").as("truncated with %s", mapping).isEqualTo(expected(smaller));
+            }
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes all {@code files} to {@code target}, adding the newline missing at the end of a file.
+     */
+    static Path concatenate(List<Path> files, Path target) throws IOException {
+        try (OutputStream out = Files.newOutputStream(target)) {
+            for (Path file : files) {
+                byte[] bytes = Files.readAllBytes(file);
+                out.write(bytes);
+                if (bytes.length > 0 && bytes[bytes.length - 1] != '\n') {
+                    out.write('\n');
+                }
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.marco.marco;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import dev.morling.onebrc.BatchResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BlaTest {
+
+    static final Path SAMPLES = Path.of("src/test/resources/samples");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void bytesAndLinesMatchEverySample() throws IOException {
+        for (Bla.SplitMode splitMode : Bla.SplitMode.values()) {
+            for (int threads : new int[]{ 1, 3, 8 }) {
+                try (Bla.Engine engine = new Bla.Engine(threads, splitMode)) {
+                    for (Path sample : samples()) {
+                        assertThat(engine.aggregate(sample) + "\n")
+                                .as("%s with %s and %d threads", sample.getFileName(), splitMode, threads)
+                                .isEqualTo(expected(sample));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void batchAggregatesOneFileAfterTheOther() throws IOException {
+        List<Path> samples = samples();
+        Path all = Bla2Test.concatenate(samples, tempDir.resolve("all.txt"));
+
+        try (Bla.Engine engine = new Bla.Engine(3, Bla.SplitMode.BYTES)) {
+            BatchResult result = engine.aggregateAll(samples, true);
+
+            assertThat(List.copyOf(result.files().keySet())).isEqualTo(samples);
+            for (Path sample : samples) {
+                assertThat(result.files().get(sample) + "\n").as("%s", sample.getFileName()).isEqualTo(expected(sample));
+            }
+            assertThat(result.combined().toString()).as("all files").isEqualTo(engine.aggregate(all).toString());
+
+            assertThat(engine.aggregateAll(samples, false).combined()).as("not combined").isNull();
+        }
+    }
+
+    /**
+     * @return the {@code measurements*.txt} files of the samples, sorted by name
+     */
+    static List<Path> samples() throws IOException {
+        try (Stream<Path> files = Files.list(SAMPLES)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".txt")).sorted().toList();
+        }
+    }
+
+    /**
+     * @return the content of the {@code .out} file next to {@code sample}
+     */
+    static String expected(Path sample) throws IOException {
+        String name = sample.getFileName().toString();
+        return Files.readString(sample.resolveSibling(name.substring(0, name.length() - ".txt".length()) + ".out"));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CreateMeasurementsFastTest {
+
+    // two full chunks and a partial one
+    private static final long ROWS = 2L * CreateMeasurementsFast.CHUNK_ROWS + 1234;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void seedGivesTheSameFileForAnyNumberOfWorkers() throws IOException {
+        Path reference = tempDir.resolve("reference.txt");
+        assertThat(CreateMeasurementsFast.create(reference, ROWS, Long.MAX_VALUE, 42L, 1)).isEqualTo(ROWS);
+
+        for (int workers : new int[]{ 2, 3, 8 }) {
+            Path file = tempDir.resolve("workers-" + workers + ".txt");
+            assertThat(CreateMeasurementsFast.create(file, ROWS, Long.MAX_VALUE, 42L, workers)).isEqualTo(ROWS);
+            assertThat(Files.mismatch(reference, file)).as("%d workers", workers).isEqualTo(-1L);
+        }
+
+        Path otherSeed = tempDir.resolve("other-seed.txt");
+        CreateMeasurementsFast.create(otherSeed, ROWS, Long.MAX_VALUE, 43L, 3);
+        assertThat(Files.mismatch(reference, otherSeed)).as("another seed").isNotEqualTo(-1L);
+    }
+
+    @Test
+    void seedGivesTheSameFileOfAGivenSizeForAnyNumberOfWorkers() throws IOException {
+        // ends within the second chunk
+        long targetBytes = 5L << 20;
+        Path reference = tempDir.resolve("reference.txt");
+        CreateMeasurementsFast.create(reference, Long.MAX_VALUE, targetBytes, 7L, 1);
+        assertThat(Files.size(reference)).isGreaterThanOrEqualTo(targetBytes);
+
+        for (int workers : new int[]{ 2, 5 }) {
+            Path file = tempDir.resolve("workers-" + workers + ".txt");
+            CreateMeasurementsFast.create(file, Long.MAX_VALUE, targetBytes, 7L, workers);
+            assertThat(Files.mismatch(reference, file)).as("%d workers", workers).isEqualTo(-1L);
+        }
+    }
+}